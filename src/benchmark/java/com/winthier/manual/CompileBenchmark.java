@@ -0,0 +1,77 @@
+package com.winthier.manual;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.json.simple.parser.ParseException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measure each stage of the manual compiler on its own. The NBT
+ * stage (Dirty.applyMap) needs a running server and is not covered.
+ *
+ * Run with "-prof gc" to see allocations per operation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CompileBenchmark {
+    @Param({"10", "100", "1000", "5000"})
+    int pages;
+    @Param({"0", "4", "16"})
+    int tagsPerPage;
+    private ManualCompiler compiler;
+    private String json;
+    private Map<String, Object> map;
+    private List<List<Object>> expanded;
+
+    @Setup
+    public void setup() throws ParseException {
+        Logger logger = Logger.getAnonymousLogger();
+        logger.setLevel(Level.OFF);
+        compiler = new ManualCompiler(logger);
+        json = SyntheticBooks.generate(pages, tagsPerPage, 10, 5);
+        map = ManualCompiler.parseJson(json);
+        expanded = compiler.expandPages(map, "benchmark");
+    }
+
+    @Benchmark
+    public Object parseJson() throws ParseException {
+        return ManualCompiler.parseJson(json);
+    }
+
+    @Benchmark
+    public Object expandPages() {
+        return compiler.expandPages(map, "benchmark");
+    }
+
+    @Benchmark
+    public Object serializePages() {
+        return ManualCompiler.serializePages(expanded);
+    }
+
+    @Benchmark
+    public Object compile() throws ManualCompiler.SyntaxException {
+        return compiler.compile(json, "benchmark");
+    }
+
+    @Benchmark
+    public Object compileTree() throws ParseException {
+        return compiler.compile(ManualCompiler.parseJson(json), "benchmark");
+    }
+}
@@ -0,0 +1,84 @@
+package com.winthier.manual;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.json.simple.JSONValue;
+import org.json.simple.parser.ParseException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compare a full compile with recompiling after a small edit, using
+ * the page cache of the previous compile. Each operation switches
+ * between the original and the edited book, so every compile sees
+ * exactly one change.
+ *
+ * editPage changes the text of one page in the middle of the book.
+ * insertPage adds a page at the start, which moves every chapter and
+ * so changes the page number of every reference and table of
+ * contents entry.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IncrementalBenchmark {
+    @Param({"100", "1000", "5000"})
+    int pages;
+    private ManualCompiler compiler;
+    private ManualCompiler incremental;
+    private String json;
+    private String edited;
+    private String inserted;
+    private boolean toggle;
+
+    @Setup
+    public void setup() throws ParseException {
+        Logger logger = Logger.getAnonymousLogger();
+        logger.setLevel(Level.OFF);
+        compiler = new ManualCompiler(logger);
+        incremental = new ManualCompiler(logger);
+        incremental.setPageCache(new PageCache());
+        json = SyntheticBooks.generate(pages, 4, 10, 5);
+        Map<String, Object> book = ManualCompiler.parseJson(json);
+        @SuppressWarnings("unchecked")
+        List<Object> list = (List<Object>)book.get("pages");
+        int middle = list.lastIndexOf(SyntheticBooks.paragraph(pages / 2, 4));
+        list.set(middle, SyntheticBooks.paragraph(pages / 2, 4) + " Edited.");
+        edited = JSONValue.toJSONString(book);
+        list.set(middle, SyntheticBooks.paragraph(pages / 2, 4));
+        list.add(0, "Inserted page");
+        inserted = JSONValue.toJSONString(book);
+    }
+
+    @Benchmark
+    public Object fullCompile() throws ManualCompiler.SyntaxException {
+        return compiler.compile(json, "benchmark");
+    }
+
+    @Benchmark
+    public Object editPage() throws ManualCompiler.SyntaxException {
+        toggle = !toggle;
+        return incremental.compile(toggle ? edited : json, "benchmark");
+    }
+
+    @Benchmark
+    public Object insertPage() throws ManualCompiler.SyntaxException {
+        toggle = !toggle;
+        return incremental.compile(toggle ? inserted : json, "benchmark");
+    }
+}
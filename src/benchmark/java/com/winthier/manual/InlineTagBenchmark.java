@@ -0,0 +1,76 @@
+package com.winthier.manual;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * InlineTagLexer compared with the regex and String.split() code it
+ * replaced.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class InlineTagBenchmark {
+    @Param({"0", "4", "16"})
+    int tagsPerPage;
+    private List<String> paragraphs;
+
+    @Setup
+    public void setup() {
+        paragraphs = new ArrayList<>();
+        for (int i = 0; i < 1000; i += 1) {
+            paragraphs.add(SyntheticBooks.paragraph(i, tagsPerPage));
+        }
+    }
+
+    @Benchmark
+    public void regex(Blackhole blackhole) {
+        for (String par: paragraphs) {
+            Pattern pattern = Pattern.compile("\\{[^}]+\\}");
+            Matcher matcher = pattern.matcher(par);
+            int prevEnd = 0;
+            while (matcher.find()) {
+                String group = matcher.group();
+                group = group.substring(1, group.length() - 1);
+                String[] toks = group.split("\\|");
+                blackhole.consume(toks[0].toLowerCase());
+                blackhole.consume(toks);
+                blackhole.consume(par.substring(prevEnd, matcher.start()));
+                prevEnd = matcher.end();
+            }
+            blackhole.consume(par.substring(prevEnd, par.length()));
+        }
+    }
+
+    @Benchmark
+    public void lexer(Blackhole blackhole) {
+        for (String par: paragraphs) {
+            InlineTagLexer lexer = new InlineTagLexer(par);
+            for (InlineTagLexer.Token token = lexer.next(); token != InlineTagLexer.Token.END; token = lexer.next()) {
+                if (token == InlineTagLexer.Token.TEXT) {
+                    blackhole.consume(lexer.getText());
+                } else {
+                    blackhole.consume(lexer.getTagArgs());
+                }
+            }
+        }
+    }
+}
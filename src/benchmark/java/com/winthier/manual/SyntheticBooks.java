@@ -0,0 +1,67 @@
+package com.winthier.manual;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.json.simple.JSONValue;
+
+/**
+ * Generate book JSON of arbitrary size for the benchmarks.
+ */
+final class SyntheticBooks {
+    private static final String[] TAGS = {
+        "{command|&aClick here|/spawn|Teleport to spawn}",
+        "{url|&9Website|https://example.com|Open the website}",
+        "{tooltip|&ohover|Some explanation}",
+        "{page|next page|2}",
+        "{anchor|anchor%d}",
+    };
+
+    private SyntheticBooks() { }
+
+    /**
+     * @param pageCount number of pages
+     * @param tagsPerPage inline tags in each page
+     * @param chapterEvery start a new chapter every so many pages,
+     * or 0 for no chapters
+     * @param referenceEvery add a reference to a chapter every so
+     * many pages, or 0 for no references
+     */
+    static String generate(int pageCount, int tagsPerPage, int chapterEvery, int referenceEvery) {
+        List<Object> pages = new ArrayList<>();
+        for (int i = 0; i < pageCount; i += 1) {
+            if (chapterEvery > 0 && i % chapterEvery == 0) {
+                Map<String, Object> chapter = new LinkedHashMap<>();
+                chapter.put("chapter", "Chapter " + (i / chapterEvery + 1));
+                chapter.put("text", "&lChapter " + (i / chapterEvery + 1) + "&r\n");
+                pages.add(chapter);
+            }
+            if (referenceEvery > 0 && chapterEvery > 0 && i % referenceEvery == referenceEvery - 1) {
+                Map<String, Object> reference = new LinkedHashMap<>();
+                reference.put("text", "See chapter 1\n");
+                reference.put("color", "blue");
+                reference.put("reference", "Chapter 1");
+                pages.add(reference);
+            }
+            pages.add(paragraph(i, tagsPerPage));
+        }
+        Map<String, Object> book = new LinkedHashMap<>();
+        book.put("title", "&6Benchmark");
+        book.put("author", "Benchmark");
+        book.put("Version", 1);
+        book.put("TableOfContents", chapterEvery > 0);
+        book.put("pages", pages);
+        return JSONValue.toJSONString(book);
+    }
+
+    static String paragraph(int index, int tags) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("&lPage ").append(index + 1).append("&r\n");
+        for (int i = 0; i <= tags; i += 1) {
+            sb.append("Lorem ipsum &7dolor&r sit amet, consectetur adipiscing elit. ");
+            if (i < tags) sb.append(String.format(TAGS[(index + i) % TAGS.length], index));
+        }
+        return sb.toString();
+    }
+}
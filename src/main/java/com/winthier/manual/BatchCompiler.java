@@ -0,0 +1,279 @@
+package com.winthier.manual;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+import org.bukkit.ChatColor;
+import org.json.simple.JSONValue;
+
+/**
+ * Compile a folder of books without a server, for example in CI.
+ * Books are compiled in parallel. Every warning the compiler would
+ * log on the server is reported per book, as text or as JSON, along
+ * with sizes and timings. With --out, the output is written in the
+ * format of the plugin's compile cache, so the plugin loads it
+ * instead of compiling the books again.
+ *
+ * Usage: java -cp Manual.jar:spigot-api.jar com.winthier.manual.BatchCompiler
+ * [options] books-folder
+ *   --fragments DIR        fragments folder (default: ../fragments)
+ *   --out DIR              write precompiled output, e.g. plugins/Manual/cache
+ *   --volume-max-bytes N   must match VolumeMaxBytes in config.yml (default 131072, 0 for none)
+ *   --threads N            parallelism (default: number of CPUs)
+ *   --json                 print a JSON report instead of text
+ *   --strict               fail on warnings, not only on errors
+ *
+ * The exit status is 0 if all books compiled, 1 if any failed, and
+ * 2 for bad arguments.
+ */
+public final class BatchCompiler {
+    private final File[] files;
+    private final FragmentTable fragments;
+    private final CompileCache output;
+    private final long volumeMaxBytes;
+
+    private BatchCompiler(final File[] files, final FragmentTable fragments, final CompileCache output, final long volumeMaxBytes) {
+        this.files = files;
+        this.fragments = fragments;
+        this.output = output;
+        this.volumeMaxBytes = volumeMaxBytes;
+    }
+
+    /**
+     * The outcome of one book.
+     */
+    static final class Report {
+        private final String name;
+        private final List<Map<String, Object>> diagnostics = new ArrayList<>();
+        private boolean ok = false;
+        private long sourceBytes;
+        private int pages;
+        private int volumes;
+        private long tagBytes;
+        private long nanos;
+        private boolean written;
+
+        Report(final String name) {
+            this.name = name;
+        }
+
+        synchronized void diagnose(String level, String message) {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("level", level);
+            map.put("message", message);
+            diagnostics.add(map);
+        }
+
+        synchronized boolean has(String level) {
+            for (Map<String, Object> map: diagnostics) {
+                if (level.equals(map.get("level"))) return true;
+            }
+            return false;
+        }
+
+        Map<String, Object> toJson() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("name", name);
+            map.put("ok", ok);
+            map.put("sourceBytes", sourceBytes);
+            map.put("pages", pages);
+            map.put("volumes", volumes);
+            map.put("tagBytes", tagBytes);
+            map.put("millis", (double)nanos / 1000000.0);
+            map.put("written", written);
+            map.put("diagnostics", diagnostics);
+            return map;
+        }
+    }
+
+    /**
+     * Split the list of files in halves until single books are
+     * left.
+     */
+    private final class CompileTask extends RecursiveTask<List<Report>> {
+        private final int from;
+        private final int to;
+
+        CompileTask(final int from, final int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected List<Report> compute() {
+            if (to - from == 1) return Collections.singletonList(compileBook(files[from]));
+            int middle = (from + to) / 2;
+            CompileTask left = new CompileTask(from, middle);
+            left.fork();
+            List<Report> result = new ArrayList<>(new CompileTask(middle, to).compute());
+            result.addAll(0, left.join());
+            return result;
+        }
+    }
+
+    Report compileBook(File file) {
+        String name = file.getName().substring(0, file.getName().length() - 5);
+        final Report report = new Report(name);
+        Logger logger = Logger.getAnonymousLogger();
+        logger.setUseParentHandlers(false);
+        logger.setLevel(Level.ALL);
+        logger.addHandler(new Handler() {
+                @Override
+                public void publish(LogRecord record) {
+                    String level = record.getLevel().intValue() >= Level.SEVERE.intValue() ? "error"
+                        : record.getLevel().intValue() >= Level.WARNING.intValue() ? "warning"
+                        : "info";
+                    report.diagnose(level, record.getMessage());
+                }
+
+                @Override
+                public void flush() { }
+
+                @Override
+                public void close() { }
+            });
+        ManualCompiler compiler = new ManualCompiler(logger);
+        compiler.setFragments(fragments);
+        compiler.setVolumeMaxBytes(volumeMaxBytes);
+        long start = System.nanoTime();
+        ManualCompiler.Result result;
+        byte[] source;
+        try {
+            source = Files.readAllBytes(file.toPath());
+        } catch (IOException ioe) {
+            report.diagnose("error", "Could not read " + file + ": " + ioe.getMessage());
+            return report;
+        }
+        report.sourceBytes = source.length;
+        try (Reader reader = new InputStreamReader(new ByteArrayInputStream(source), StandardCharsets.UTF_8)) {
+            result = compiler.compile(reader, name);
+        } catch (IOException ioe) {
+            report.diagnose("error", "Could not read " + file + ": " + ioe.getMessage());
+            return report;
+        } catch (ManualCompiler.SyntaxException se) {
+            report.diagnose("error", ChatColor.stripColor(se.getMessage()));
+            return report;
+        } catch (RuntimeException re) {
+            report.diagnose("error", "Compiler failed: " + re);
+            return report;
+        }
+        report.nanos = System.nanoTime() - start;
+        if (result == null) {
+            // A page which failed to compile has reported why.
+            if (!report.has("error")) report.diagnose("error", "Book has no pages");
+            return report;
+        }
+        report.ok = true;
+        report.pages = result.getPageCount();
+        report.volumes = result.getVolumes().size();
+        report.tagBytes = ManualStats.measure(result.getVolumes());
+        if (output != null) {
+            try {
+                String hash = CompileCache.hashSource(new ByteArrayInputStream(source));
+                report.written = hash != null && output.save(name, result, hash);
+            } catch (IOException ioe) {
+                report.diagnose("error", "Could not hash " + file + ": " + ioe.getMessage());
+            }
+        }
+        return report;
+    }
+
+    public static void main(String[] args) {
+        System.exit(run(args));
+    }
+
+    static int run(String[] args) {
+        File books = null;
+        File fragmentsFolder = null;
+        File out = null;
+        long volumeMaxBytes = 131072L;
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean json = false;
+        boolean strict = false;
+        try {
+            for (int i = 0; i < args.length; i += 1) {
+                switch (args[i]) {
+                case "--fragments": fragmentsFolder = new File(args[++i]); break;
+                case "--out": out = new File(args[++i]); break;
+                case "--volume-max-bytes": volumeMaxBytes = Long.parseLong(args[++i]); break;
+                case "--threads": threads = Integer.parseInt(args[++i]); break;
+                case "--json": json = true; break;
+                case "--strict": strict = true; break;
+                default:
+                    if (args[i].startsWith("--") || books != null) throw new IllegalArgumentException(args[i]);
+                    books = new File(args[i]);
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
+            System.err.println("Invalid argument: " + e.getMessage());
+            return 2;
+        }
+        if (books == null || !books.isDirectory()) {
+            System.err.println("Usage: BatchCompiler [--fragments DIR] [--out DIR] [--volume-max-bytes N] [--threads N] [--json] [--strict] BOOKS");
+            return 2;
+        }
+        if (fragmentsFolder == null) fragmentsFolder = new File(books.getAbsoluteFile().getParentFile(), "fragments");
+        if (volumeMaxBytes <= 0L) volumeMaxBytes = Long.MAX_VALUE;
+        Logger logger = Logger.getLogger("Manual");
+        File[] files = books.listFiles((dir, fn) -> fn.endsWith(".json"));
+        if (files == null) files = new File[0];
+        Arrays.sort(files);
+        BatchCompiler batch = new BatchCompiler(files, new FragmentTable(fragmentsFolder),
+                                                out != null ? new CompileCache(out, logger, volumeMaxBytes) : null,
+                                                volumeMaxBytes);
+        long start = System.nanoTime();
+        List<Report> reports = files.length == 0
+            ? Collections.<Report>emptyList()
+            : new ForkJoinPool(Math.max(1, threads)).invoke(batch.new CompileTask(0, files.length));
+        long nanos = System.nanoTime() - start;
+        int failed = 0;
+        int warned = 0;
+        for (Report report: reports) {
+            if (!report.ok || report.has("error")) failed += 1;
+            if (report.has("warning")) warned += 1;
+        }
+        if (json) {
+            List<Object> list = new ArrayList<>();
+            for (Report report: reports) list.add(report.toJson());
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("compilerVersion", ManualCompiler.VERSION);
+            map.put("books", list);
+            map.put("failed", failed);
+            map.put("warned", warned);
+            map.put("millis", (double)nanos / 1000000.0);
+            System.out.println(JSONValue.toJSONString(map));
+        } else {
+            for (Report report: reports) {
+                System.out.println(report.name + ": " + (report.ok ? "OK" : "FAILED")
+                                   + ", " + report.pages + " pages in " + report.volumes + " volumes"
+                                   + ", " + report.sourceBytes + " bytes source, " + report.tagBytes + " bytes NBT"
+                                   + ", " + ManualStats.millis(report.nanos)
+                                   + (report.written ? ", written" : ""));
+                for (Map<String, Object> diagnostic: report.diagnostics) {
+                    System.out.println("  " + diagnostic.get("level") + ": " + diagnostic.get("message"));
+                }
+            }
+            System.out.println(reports.size() + " books in " + ManualStats.millis(nanos) + ", "
+                               + failed + " failed, " + warned + " with warnings.");
+        }
+        if (failed > 0) return 1;
+        if (strict && warned > 0) return 1;
+        return 0;
+    }
+}
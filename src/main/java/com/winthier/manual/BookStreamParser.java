@@ -0,0 +1,188 @@
+package com.winthier.manual;
+
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.bukkit.ChatColor;
+import org.json.simple.parser.ContentHandler;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+/**
+ * Parse book JSON from a Reader and hand each element of the page
+ * list to a PageExpander as soon as it is complete, instead of
+ * building the whole document first. Everything else in the top
+ * level object is collected into a map.
+ */
+final class BookStreamParser implements ContentHandler {
+    private static final Object PAGES = new Object();
+    private final ManualCompiler.PageExpander expander;
+    private final Map<String, Object> book = new HashMap<>();
+    private final ArrayDeque<Object> stack = new ArrayDeque<>();
+    private final ArrayDeque<String> keys = new ArrayDeque<>();
+    private boolean started = false;
+
+    private BookStreamParser(final ManualCompiler.PageExpander expander) {
+        this.expander = expander;
+    }
+
+    /**
+     * Parse the book, feeding its pages to the expander.
+     * @return the top level object without the page list
+     */
+    static Map<String, Object> parse(Reader reader, ManualCompiler.PageExpander expander) throws IOException, ManualCompiler.SyntaxException {
+        TrackingReader in = new TrackingReader(reader);
+        BookStreamParser handler = new BookStreamParser(expander);
+        try {
+            new JSONParser().parse(in, handler);
+        } catch (ParseException pe) {
+            throw new ManualCompiler.SyntaxException(in.describe(pe.getPosition()));
+        } catch (ClassCastException cce) {
+            throw new ManualCompiler.SyntaxException("JSON Dictionary expected");
+        }
+        if (!handler.started) throw new ManualCompiler.SyntaxException("JSON Dictionary expected");
+        return handler.book;
+    }
+
+    @Override
+    public void startJSON() { }
+
+    @Override
+    public void endJSON() { }
+
+    @Override
+    public boolean startObject() {
+        if (!started) {
+            started = true;
+            stack.push(book);
+        } else {
+            stack.push(new HashMap<String, Object>());
+        }
+        return true;
+    }
+
+    @Override
+    public boolean endObject() {
+        Object value = stack.pop();
+        if (!stack.isEmpty()) addValue(value);
+        return true;
+    }
+
+    @Override
+    public boolean startObjectEntry(String key) {
+        keys.push(key);
+        return true;
+    }
+
+    @Override
+    public boolean endObjectEntry() {
+        keys.pop();
+        return true;
+    }
+
+    @Override
+    public boolean startArray() {
+        if (stack.isEmpty()) throw new ClassCastException();
+        if (stack.peek() == book && "pages".equals(keys.peek())) {
+            stack.push(PAGES);
+        } else {
+            stack.push(new ArrayList<Object>());
+        }
+        return true;
+    }
+
+    @Override
+    public boolean endArray() {
+        Object value = stack.pop();
+        if (value != PAGES) addValue(value);
+        return true;
+    }
+
+    @Override
+    public boolean primitive(Object value) {
+        if (stack.isEmpty()) throw new ClassCastException();
+        addValue(value);
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void addValue(Object value) {
+        Object top = stack.peek();
+        if (top == PAGES) {
+            expander.add(value);
+        } else if (top instanceof Map) {
+            ((Map<String, Object>)top).put(keys.peek(), value);
+        } else {
+            ((List<Object>)top).add(value);
+        }
+    }
+
+    /**
+     * Remember the most recent characters and count lines, so that
+     * syntax errors can be reported with line, column and context
+     * without keeping the whole document.
+     */
+    static final class TrackingReader extends FilterReader {
+        // Larger than the read buffer of the JSON lexer, so the
+        // error position is always inside the window.
+        private final char[] window = new char[65536];
+        private long count = 0;
+        private int droppedLines = 0;
+        private long droppedNewline = -1;
+
+        TrackingReader(final Reader in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int c = super.read();
+            if (c >= 0) record((char)c);
+            return c;
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) throws IOException {
+            int n = super.read(cbuf, off, len);
+            for (int i = 0; i < n; i += 1) record(cbuf[off + i]);
+            return n;
+        }
+
+        private void record(char c) {
+            int slot = (int)(count % window.length);
+            if (count >= window.length && window[slot] == '\n') {
+                droppedLines += 1;
+                droppedNewline = count - window.length;
+            }
+            window[slot] = c;
+            count += 1;
+        }
+
+        private String substring(long from, long to) {
+            from = Math.max(from, Math.max(0, count - window.length));
+            to = Math.min(to, count);
+            StringBuilder sb = new StringBuilder();
+            for (long i = from; i < to; i += 1) sb.append(window[(int)(i % window.length)]);
+            return sb.toString();
+        }
+
+        String describe(long pos) {
+            int linum = droppedLines;
+            long lastNewline = droppedNewline;
+            for (long i = Math.max(0, count - window.length); i < pos && i < count; i += 1) {
+                if (window[(int)(i % window.length)] == '\n') {
+                    linum += 1;
+                    lastNewline = i;
+                }
+            }
+            long chnum = pos - lastNewline - 1;
+            String msg = substring(pos - 12, pos) + ChatColor.YELLOW + substring(pos, pos + 1) + ChatColor.RESET + substring(pos + 1, pos + 12);
+            return "JSON error at line " + (linum + 1) + " char " + (chnum + 1) + ": " + msg.replace("\n", "\\n");
+        }
+    }
+}
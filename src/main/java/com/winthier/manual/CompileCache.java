@@ -0,0 +1,164 @@
+package com.winthier.manual;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.logging.Logger;
+import lombok.RequiredArgsConstructor;
+import lombok.Value;
+import org.json.simple.JSONValue;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+/**
+ * Compiled books stored as JSON files, one per book, keyed by a hash
+ * of the book source and the compiler version. The plugin writes
+ * them after compiling and reads them instead of compiling again;
+ * BatchCompiler can write them ahead of time.
+ */
+@RequiredArgsConstructor
+final class CompileCache {
+    private final File folder;
+    private final Logger logger;
+    // Output depends on the volume size limit, so it is stored and
+    // checked along with the hash.
+    private final long volumeMaxBytes;
+
+    @Value
+    static class Entry {
+        private int version;
+        private List<Map<String, Object>> volumes;
+        private Map<String, String> includes;
+    }
+
+    /**
+     * Hash of the book source together with the compiler version, so
+     * that cached output goes stale when either one changes.
+     */
+    static String hashSource(InputStream in) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException nsae) {
+            nsae.printStackTrace();
+            return null;
+        }
+        byte[] buffer = new byte[8192];
+        for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+            digest.update(buffer, 0, n);
+        }
+        digest.update(Integer.toString(ManualCompiler.VERSION).getBytes(StandardCharsets.UTF_8));
+        StringBuilder sb = new StringBuilder();
+        for (byte b: digest.digest()) sb.append(String.format("%02x", b));
+        return sb.toString();
+    }
+
+    private File getFile(String name) {
+        if (name.indexOf('/') >= 0 || name.indexOf('\\') >= 0) return null;
+        return new File(folder, name + ".json");
+    }
+
+    /**
+     * Load the cached output for a book.
+     * @return the entry, or null if there is none or it is stale
+     * because the book or one of its fragments changed
+     */
+    Entry load(String name, String hash, ManualCompiler.Fragments fragments) {
+        File file = getFile(name);
+        if (file == null || !file.isFile()) return null;
+        Map<?, ?> map;
+        try (Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+            map = (Map<?, ?>)new JSONParser().parse(reader);
+        } catch (IOException | ParseException | ClassCastException e) {
+            logger.warning("Ignoring broken cache file " + file + ": " + e.getMessage());
+            return null;
+        }
+        if (!hash.equals(map.get("Hash"))) return null;
+        if (ManualCompiler.getInt(map, "VolumeMaxBytes", 0) != (int)Math.min(volumeMaxBytes, Integer.MAX_VALUE)) return null;
+        Object version = map.get("Version");
+        Object volumes = map.get("Volumes");
+        Object includes = map.get("Includes");
+        if (!(version instanceof Number) || !(volumes instanceof List) || !(includes instanceof Map)) return null;
+        Map<String, String> includeHashes = new HashMap<>();
+        for (Map.Entry<?, ?> entry: ((Map<?, ?>)includes).entrySet()) {
+            String fragmentName = entry.getKey().toString();
+            String fragmentHash = entry.getValue() != null ? entry.getValue().toString() : null;
+            ManualCompiler.Fragment fragment = fragments != null ? fragments.get(fragmentName) : null;
+            if (!Objects.equals(fragment != null ? fragment.getHash() : null, fragmentHash)) return null;
+            includeHashes.put(fragmentName, fragmentHash);
+        }
+        List<Map<String, Object>> tags = new ArrayList<>();
+        for (Object itemTag: (List<?>)volumes) {
+            if (!(itemTag instanceof Map)) return null;
+            @SuppressWarnings("unchecked")
+            Map<String, Object> tag = (Map<String, Object>)fromCache(itemTag);
+            tags.add(tag);
+        }
+        if (tags.isEmpty()) return null;
+        return new Entry(((Number)version).intValue(), tags, includeHashes);
+    }
+
+    /**
+     * JSON numbers come back as Long. Turn them into Integer so the
+     * NBT types match those of a freshly compiled tag.
+     */
+    private static Object fromCache(Object o) {
+        if (o instanceof Long) {
+            long l = (Long)o;
+            if (l >= Integer.MIN_VALUE && l <= Integer.MAX_VALUE) return (int)l;
+            return o;
+        } else if (o instanceof Map) {
+            Map<String, Object> result = new HashMap<>();
+            for (Map.Entry<?, ?> entry: ((Map<?, ?>)o).entrySet()) {
+                result.put(entry.getKey().toString(), fromCache(entry.getValue()));
+            }
+            return result;
+        } else if (o instanceof List) {
+            List<Object> result = new ArrayList<>();
+            for (Object e: (List<?>)o) result.add(fromCache(e));
+            return result;
+        } else {
+            return o;
+        }
+    }
+
+    /**
+     * Write the output for a book, replacing the old file
+     * atomically.
+     * @return true if the file was written
+     */
+    boolean save(String name, ManualCompiler.Result result, String hash) {
+        File file = getFile(name);
+        if (file == null) return false;
+        folder.mkdirs();
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("Hash", hash);
+        map.put("VolumeMaxBytes", (int)Math.min(volumeMaxBytes, Integer.MAX_VALUE));
+        map.put("Version", result.getVersion());
+        map.put("Volumes", result.getVolumes());
+        map.put("Includes", result.getIncludes());
+        File tmp = new File(folder, file.getName() + ".tmp");
+        try {
+            Files.write(tmp.toPath(), JSONValue.toJSONString(map).getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } catch (IOException ioe) {
+            logger.warning("Could not write cache file " + file + ": " + ioe.getMessage());
+            return false;
+        }
+    }
+}
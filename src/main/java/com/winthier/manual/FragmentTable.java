@@ -0,0 +1,91 @@
+package com.winthier.manual;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import lombok.RequiredArgsConstructor;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+/**
+ * Fragments are page lists in the fragments folder which books pull
+ * in with {"include": "name"}. A fragment file holds either a list
+ * of page elements or an object with a "pages" list. Each fragment
+ * is read once and shared by every book that includes it, until it
+ * is invalidated. Safe to use from any thread.
+ */
+@RequiredArgsConstructor
+final class FragmentTable implements ManualCompiler.Fragments {
+    private final File folder;
+    private final Map<String, ManualCompiler.Fragment> fragments = new ConcurrentHashMap<>();
+    // Weak interner for compiled pages
+    private final Map<String, WeakReference<String>> pages = new WeakHashMap<>();
+
+    @Override
+    public ManualCompiler.Fragment get(String name) {
+        ManualCompiler.Fragment result = fragments.get(name);
+        if (result == null) {
+            result = read(name);
+            ManualCompiler.Fragment old = fragments.putIfAbsent(name, result);
+            if (old != null) result = old;
+        }
+        return result;
+    }
+
+    private ManualCompiler.Fragment read(String name) {
+        if (name.isEmpty() || name.indexOf('/') >= 0 || name.indexOf('\\') >= 0) {
+            return new ManualCompiler.Fragment(null, null, "invalid name");
+        }
+        File file = new File(folder, name + ".json");
+        if (!file.isFile()) return new ManualCompiler.Fragment(null, null, "not found");
+        byte[] bytes;
+        String hash;
+        try {
+            bytes = Files.readAllBytes(file.toPath());
+            hash = CompileCache.hashSource(new ByteArrayInputStream(bytes));
+        } catch (IOException ioe) {
+            return new ManualCompiler.Fragment(null, null, "could not read " + file + ": " + ioe.getMessage());
+        }
+        Object json;
+        try {
+            json = new JSONParser().parse(new String(bytes, StandardCharsets.UTF_8));
+        } catch (ParseException pe) {
+            return new ManualCompiler.Fragment(null, hash, "JSON error at char " + pe.getPosition());
+        }
+        if (json instanceof Map) json = ((Map<?, ?>)json).get("pages");
+        if (!(json instanceof List)) {
+            return new ManualCompiler.Fragment(null, hash, "page list expected");
+        }
+        return new ManualCompiler.Fragment(Collections.unmodifiableList((List<?>)json), hash, null);
+    }
+
+    /**
+     * Forget a fragment so it is read again on next use.
+     */
+    void invalidate(String name) {
+        fragments.remove(name);
+    }
+
+    void clear() {
+        fragments.clear();
+    }
+
+    @Override
+    public String intern(String page) {
+        synchronized (pages) {
+            WeakReference<String> ref = pages.get(page);
+            String result = ref != null ? ref.get() : null;
+            if (result != null) return result;
+            pages.put(page, new WeakReference<>(page));
+            return page;
+        }
+    }
+}
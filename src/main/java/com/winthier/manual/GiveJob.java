@@ -0,0 +1,115 @@
+package com.winthier.manual;
+
+import com.winthier.custom.CustomPlugin;
+import com.winthier.custom.util.Dirty;
+import com.winthier.custom.util.Items;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import org.bukkit.Material;
+import org.bukkit.command.CommandSender;
+import org.bukkit.entity.Player;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.scheduler.BukkitRunnable;
+
+/**
+ * Hand copies of one manual item to a list of players, a batch of
+ * players per tick. Each player gets the variant for their locale,
+ * or the default manual. The item of each variant is built once;
+ * only pages with placeholders are written again for each player.
+ * Players who already carry an up to date copy may be skipped.
+ */
+final class GiveJob extends BukkitRunnable {
+    private final ManualPlugin plugin;
+    private final CommandSender sender;
+    private final String name;
+    // Loaded variants by name, including the default manual
+    private final Map<String, ManualPlugin.Manual> manuals;
+    private final Map<String, ItemStack> items = new HashMap<>();
+    private final int batchSize;
+    private final boolean skipCurrent;
+    private final Deque<Player> players;
+    private final int total;
+    private int given = 0;
+    private int skipped = 0;
+    private int offline = 0;
+    private String lastGiven;
+    private boolean scheduled = false;
+
+    GiveJob(ManualPlugin plugin, CommandSender sender, String name, Map<String, ManualPlugin.Manual> manuals,
+            Collection<Player> players, int batchSize, boolean skipCurrent) {
+        this.plugin = plugin;
+        this.sender = sender;
+        this.name = name;
+        this.manuals = manuals;
+        this.batchSize = Math.max(1, batchSize);
+        this.skipCurrent = skipCurrent;
+        this.players = new ArrayDeque<>(players);
+        this.total = this.players.size();
+    }
+
+    /**
+     * Give to the first batch right away and schedule the rest.
+     */
+    void start() {
+        run();
+        if (!players.isEmpty()) {
+            runTaskTimer(plugin, 1L, 1L);
+            scheduled = true;
+        }
+    }
+
+    @Override
+    public void run() {
+        for (int i = 0; i < batchSize && !players.isEmpty(); i += 1) {
+            give(players.removeFirst());
+        }
+        if (!players.isEmpty()) return;
+        if (scheduled) cancel();
+        if (total == 1 && given == 1) {
+            sender.sendMessage("Manual " + name + " given to " + lastGiven);
+        } else {
+            sender.sendMessage("Manual " + name + " given to " + given + "/" + total + " players, "
+                               + skipped + " already had it, " + offline + " went offline.");
+        }
+    }
+
+    private void give(Player player) {
+        if (!player.isOnline()) {
+            offline += 1;
+            return;
+        }
+        ManualPlugin.Manual manual = manuals.get(plugin.variantName(name, player));
+        if (manual == null) manual = manuals.get(name);
+        if (skipCurrent && hasCurrentCopy(player, manual.getName())) {
+            skipped += 1;
+            return;
+        }
+        ItemStack item = items.get(manual.getName());
+        if (item == null) {
+            item = ManualItem.createItem(manual, 1, plugin.getVersions().getStamp(manual.getName()));
+            if (name.indexOf('@') < 0) ManualItem.setFollowsLocale(item);
+            items.put(manual.getName(), item);
+        }
+        ItemStack copy = item.clone();
+        ManualItem.fillPlaceholders(copy, manual, player, plugin);
+        for (ItemStack drop: player.getInventory().addItem(copy).values()) {
+            Items.give(drop, player);
+        }
+        given += 1;
+        lastGiven = player.getName();
+    }
+
+    private boolean hasCurrentCopy(Player player, String variant) {
+        VersionTable versions = plugin.getVersions();
+        for (ItemStack it: player.getInventory().getContents()) {
+            if (it == null || it.getType() != Material.WRITTEN_BOOK) continue;
+            if (!ManualItem.CUSTOM_ID.equals(CustomPlugin.getInstance().getItemManager().getCustomId(it))) continue;
+            Dirty.TagWrapper conf = Dirty.TagWrapper.getItemConfigOf(it);
+            if (variant.equals(conf.getString("name")) && versions.isCurrent(variant, conf.getInt("UpdateVersion"))) return true;
+        }
+        return false;
+    }
+}
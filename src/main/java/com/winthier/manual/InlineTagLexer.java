@@ -0,0 +1,144 @@
+package com.winthier.manual;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Split a paragraph into plain text and inline tags such as
+ * {command|text|/cmd|tooltip} in a single pass.
+ *
+ * A tag is a '{' followed by at least one character other than '}'
+ * and a closing '}'. Anything else, including an unclosed '{' or an
+ * empty "{}", is kept as text and recorded as a problem. Each tag is
+ * preceded by a (possibly empty) text token, and the last token
+ * before END is always text.
+ */
+final class InlineTagLexer {
+    enum Token {
+        TEXT,
+        TAG,
+        END;
+    }
+
+    static final String[] TAG_NAMES = {"command", "url", "tooltip", "page", "chapter", "anchor", "player", "placeholder"};
+    private final String input;
+    private final List<String> problems = new ArrayList<>();
+    private int pos = 0;
+    private boolean done = false;
+    private int tagStart = -1;
+    private int tagEnd = -1;
+    private int start;
+    private int end;
+    private int tokenPos;
+    // Incremental line counting
+    private int countedTo = 0;
+    private int line = 1;
+    private int lineStart = 0;
+
+    InlineTagLexer(String input) {
+        this.input = input;
+    }
+
+    Token next() {
+        if (tagStart >= 0) {
+            tokenPos = tagStart;
+            start = tagStart + 1;
+            end = tagEnd;
+            pos = tagEnd + 1;
+            tagStart = -1;
+            return Token.TAG;
+        }
+        if (done) return Token.END;
+        tokenPos = pos;
+        start = pos;
+        int i = pos;
+        while (true) {
+            i = input.indexOf('{', i);
+            if (i < 0) break;
+            int j = input.indexOf('}', i + 1);
+            if (j < 0) {
+                problems.add("Unclosed '{' at " + positionOf(i));
+                break;
+            }
+            if (j == i + 1) {
+                problems.add("Empty tag at " + positionOf(i));
+                i = j + 1;
+                continue;
+            }
+            tagStart = i;
+            tagEnd = j;
+            end = i;
+            return Token.TEXT;
+        }
+        end = input.length();
+        pos = end;
+        done = true;
+        return Token.TEXT;
+    }
+
+    /**
+     * The text of the current TEXT token.
+     */
+    String getText() {
+        return input.substring(start, end);
+    }
+
+    /**
+     * The '|' separated parts of the current TAG token. Trailing
+     * empty parts are dropped, the same way String.split() does
+     * it. The tag name in the first slot is lower case.
+     */
+    String[] getTagArgs() {
+        int count = 1;
+        for (int i = start; i < end; i += 1) {
+            if (input.charAt(i) == '|') count += 1;
+        }
+        String[] result = new String[count];
+        int n = 0;
+        int from = start;
+        for (int i = start; i <= end; i += 1) {
+            if (i == end || input.charAt(i) == '|') {
+                result[n++] = input.substring(from, i);
+                from = i + 1;
+            }
+        }
+        while (count > 0 && result[count - 1].isEmpty()) count -= 1;
+        if (count < result.length) result = Arrays.copyOf(result, count);
+        if (count > 0) result[0] = canonicalName(result[0]);
+        return result;
+    }
+
+    static String canonicalName(String name) {
+        for (String known: TAG_NAMES) {
+            if (known.equalsIgnoreCase(name)) return known;
+        }
+        return name.toLowerCase();
+    }
+
+    /**
+     * Human readable line and column where the current token starts.
+     */
+    String getPosition() {
+        return positionOf(tokenPos);
+    }
+
+    private String positionOf(int index) {
+        if (index < countedTo) {
+            countedTo = 0;
+            line = 1;
+            lineStart = 0;
+        }
+        for (; countedTo < index; countedTo += 1) {
+            if (input.charAt(countedTo) == '\n') {
+                line += 1;
+                lineStart = countedTo + 1;
+            }
+        }
+        return "line " + line + " column " + (index - lineStart + 1);
+    }
+
+    List<String> getProblems() {
+        return problems;
+    }
+}
@@ -0,0 +1,222 @@
+package com.winthier.manual;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.Setter;
+
+/**
+ * Loaded manuals by name. Readers see an immutable snapshot which
+ * is replaced as a whole on every change, so lookups take no lock
+ * and are safe from any thread. Changes are serialized and copy the
+ * map, which is fine because they only happen when a manual gets
+ * (re)compiled.
+ *
+ * The total weight, estimated from the size of the serialized
+ * pages, is kept below a maximum by evicting the least recently
+ * used manuals. Negative entries (null) remember that a manual does
+ * not exist, but only for a limited time.
+ */
+@RequiredArgsConstructor
+final class ManualCache {
+    private static final long NEGATIVE_WEIGHT = 64L;
+    private volatile Map<String, Entry> snapshot = Collections.emptyMap();
+    private final Object writeLock = new Object();
+    @Getter private final long maxWeight;
+    private final long negativeMillis;
+    @Getter private volatile long weight = 0L;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder negativeHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+    // Told the name of every evicted manual, under the write lock
+    @Setter private volatile Consumer<String> evictionListener;
+
+    @RequiredArgsConstructor
+    static final class Entry {
+        @Getter private final ManualPlugin.Manual manual;
+        private final long weight;
+        private final long expiry;
+        private volatile long lastAccess = System.nanoTime();
+    }
+
+    /**
+     * Get the entry for a name, counting a hit or a miss.
+     * @return the entry, or null if there is none
+     */
+    Entry getEntry(String name) {
+        Entry entry = peek(name);
+        if (entry == null) {
+            misses.increment();
+        } else if (entry.manual == null) {
+            negativeHits.increment();
+        } else {
+            hits.increment();
+        }
+        return entry;
+    }
+
+    /**
+     * Get the entry for a name without counting it.
+     * @return the entry, or null if there is none
+     */
+    Entry peek(String name) {
+        Entry entry = snapshot.get(name);
+        if (entry == null) return null;
+        if (entry.manual == null && entry.expiry < System.currentTimeMillis()) return null;
+        entry.lastAccess = System.nanoTime();
+        return entry;
+    }
+
+    boolean containsKey(String name) {
+        return peek(name) != null;
+    }
+
+    ManualPlugin.Manual get(String name) {
+        Entry entry = peek(name);
+        return entry != null ? entry.manual : null;
+    }
+
+    /**
+     * Store a manual, or null to remember that it does not exist,
+     * and evict the least recently used entries if the cache got too
+     * heavy.
+     */
+    void put(String name, ManualPlugin.Manual manual) {
+        putAll(Collections.singletonMap(name, manual));
+    }
+
+    /**
+     * Store several manuals in one change, so readers see either
+     * none or all of them. The new entries are never evicted.
+     */
+    void putAll(Map<String, ManualPlugin.Manual> map) {
+        synchronized (writeLock) {
+            Map<String, Entry> copy = new HashMap<>(snapshot);
+            List<Entry> added = new ArrayList<>(map.size());
+            long now = System.currentTimeMillis();
+            for (Map.Entry<String, ManualPlugin.Manual> it: map.entrySet()) {
+                String name = it.getKey();
+                ManualPlugin.Manual manual = it.getValue();
+                Entry entry = manual != null
+                    ? new Entry(manual, weigh(manual), Long.MAX_VALUE)
+                    : new Entry(null, NEGATIVE_WEIGHT + name.length(), now + negativeMillis);
+                copy.put(name, entry);
+                added.add(entry);
+            }
+            publish(copy, added);
+        }
+    }
+
+    void remove(String name) {
+        synchronized (writeLock) {
+            if (!snapshot.containsKey(name)) return;
+            Map<String, Entry> copy = new HashMap<>(snapshot);
+            copy.remove(name);
+            publish(copy, Collections.<Entry>emptyList());
+        }
+    }
+
+    void clear() {
+        synchronized (writeLock) {
+            publish(new HashMap<>(), Collections.<Entry>emptyList());
+        }
+    }
+
+    /**
+     * Drop expired negative entries, evict until the weight fits and
+     * make the result visible. Caller holds the write lock.
+     */
+    private void publish(Map<String, Entry> copy, List<Entry> keep) {
+        long now = System.currentTimeMillis();
+        long total = 0L;
+        for (Iterator<Entry> iter = copy.values().iterator(); iter.hasNext();) {
+            Entry entry = iter.next();
+            if (entry.manual == null && entry.expiry < now) {
+                iter.remove();
+                expirations.increment();
+            } else {
+                total += entry.weight;
+            }
+        }
+        List<String> evicted = Collections.emptyList();
+        if (total > maxWeight) {
+            evicted = new ArrayList<>();
+            List<Map.Entry<String, Entry>> lru = new ArrayList<>(copy.entrySet());
+            lru.sort((a, b) -> Long.compare(a.getValue().lastAccess, b.getValue().lastAccess));
+            for (Map.Entry<String, Entry> it: lru) {
+                if (total <= maxWeight) break;
+                if (keep.contains(it.getValue())) continue;
+                copy.remove(it.getKey());
+                total -= it.getValue().weight;
+                evictions.increment();
+                if (it.getValue().manual != null) evicted.add(it.getKey());
+            }
+        }
+        weight = total;
+        snapshot = Collections.unmodifiableMap(copy);
+        Consumer<String> listener = evictionListener;
+        if (listener != null) {
+            for (String name: evicted) listener.accept(name);
+        }
+    }
+
+    int size() {
+        return snapshot.size();
+    }
+
+    /**
+     * All manuals which are currently loaded, without negative
+     * entries.
+     */
+    List<ManualPlugin.Manual> values() {
+        Map<String, Entry> map = snapshot;
+        List<ManualPlugin.Manual> result = new ArrayList<>(map.size());
+        for (Entry entry: map.values()) {
+            if (entry.manual != null) result.add(entry.manual);
+        }
+        return result;
+    }
+
+    long getHits() {
+        return hits.sum();
+    }
+
+    long getNegativeHits() {
+        return negativeHits.sum();
+    }
+
+    long getMisses() {
+        return misses.sum();
+    }
+
+    long getEvictions() {
+        return evictions.sum();
+    }
+
+    long getExpirations() {
+        return expirations.sum();
+    }
+
+    /**
+     * Estimate the memory held by a manual from the length of its
+     * serialized pages. They are counted twice because the manual
+     * keeps both the item tag and the item built from it.
+     */
+    static long weigh(ManualPlugin.Manual manual) {
+        long result = 256L + manual.getName().length();
+        Object pages = manual.getItemTag().get("pages");
+        if (pages instanceof List) {
+            for (Object page: (List<?>)pages) result += page.toString().length();
+        }
+        return result * 2L;
+    }
+}
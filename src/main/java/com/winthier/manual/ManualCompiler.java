@@ -0,0 +1,816 @@
+package com.winthier.manual;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import lombok.RequiredArgsConstructor;
+import lombok.Setter;
+import lombok.Value;
+import org.bukkit.ChatColor;
+import org.json.simple.JSONValue;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+/**
+ * Turn book JSON into the item tag of a written book. This class
+ * does not need a running server, and each stage can be called on
+ * its own. It is safe to use from any thread.
+ */
+@RequiredArgsConstructor
+final class ManualCompiler {
+    /**
+     * Raise whenever the compiled output changes so that the compile
+     * cache gets invalidated.
+     */
+    static final int VERSION = 3;
+    /**
+     * Command which switches the manual in hand to another volume.
+     */
+    static final String VOLUME_COMMAND = "/manualvolume";
+    /**
+     * Placeholders are compiled to their key between two of these
+     * characters, which JSON serialization escapes. See
+     * PageTemplate.
+     */
+    static final char SLOT = '\u0000';
+    // Room left in each volume for title, author, navigation and
+    // the tags of the manual item.
+    private static final long VOLUME_OVERHEAD = 1024L;
+    private static final long PAGE_OVERHEAD = 4L;
+    private final Logger logger;
+    /**
+     * Serialized pages of one item may not exceed this many bytes.
+     * Longer manuals are split into volumes.
+     */
+    @Setter private long volumeMaxBytes = Long.MAX_VALUE;
+    /**
+     * Source of the fragments which books include, or null if
+     * includes are not supported.
+     */
+    @Setter private Fragments fragments;
+    /**
+     * Pages of the previous compile of the same book, or null to
+     * compile everything.
+     */
+    @Setter private PageCache pageCache;
+
+    @Value
+    static class Result {
+        private String name;
+        private int version;
+        // The tag of each volume; usually only one.
+        private List<Map<String, Object>> volumes;
+        private int pageCount;
+        // Included fragment names and the hashes of the versions
+        // used; null for missing fragments.
+        private Map<String, String> includes;
+        // Stage timings. When streaming, parsing happens during
+        // expansion and is counted there.
+        private long expandNanos;
+        private long resolveNanos;
+        private long serializeNanos;
+    }
+
+    /**
+     * A parsed fragment, shared by all books which include it. The
+     * elements are never modified.
+     */
+    @Value
+    static class Fragment {
+        private List<?> elements; // null if it could not be read
+        private String hash;
+        private String problem; // why it could not be read, or null
+    }
+
+    interface Fragments {
+        /**
+         * Get a fragment by name, or null if there is none.
+         */
+        Fragment get(String name);
+
+        /**
+         * Return a canonical copy of a page compiled from a
+         * fragment, so that equal pages of different manuals are
+         * only stored once.
+         */
+        String intern(String page);
+    }
+
+    /**
+     * A JSON syntax error, with a message ready to be shown to the
+     * user.
+     */
+    static final class SyntaxException extends Exception {
+        SyntaxException(final String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Run all stages, streaming the pages from the reader.
+     * @throws SyntaxException if the JSON is invalid or not a
+     * dictionary
+     */
+    Result compile(Reader reader, String name) throws IOException, SyntaxException {
+        long start = System.nanoTime();
+        PageExpander expander = new PageExpander(name);
+        Map<String, Object> book = BookStreamParser.parse(reader, expander);
+        long expanded = System.nanoTime();
+        List<List<Object>> pages = expander.finish(getBoolean(book, "TableOfContents", false));
+        if (pages == null) return null;
+        long resolved = System.nanoTime();
+        List<Map<String, Object>> volumes = buildVolumes(book, expander, pages);
+        long serialized = System.nanoTime();
+        if (pageCache != null) pageCache.end();
+        return new Result(name, getInt(book, "Version", 0), volumes, pages.size(), expander.getIncludes(),
+                          expanded - start, resolved - expanded, serialized - resolved);
+    }
+
+    Result compile(String json, String name) throws SyntaxException {
+        try {
+            return compile(new StringReader(json), name);
+        } catch (IOException ioe) {
+            throw new IllegalStateException(ioe);
+        }
+    }
+
+    Result compile(Map<?, ?> book, String name) {
+        long start = System.nanoTime();
+        Object pagesObject = book.get("pages");
+        if (!(pagesObject instanceof List)) return null;
+        PageExpander expander = new PageExpander(name);
+        for (Object o: (List<?>)pagesObject) expander.add(o);
+        List<List<Object>> pages = expander.finish(getBoolean(book, "TableOfContents", false));
+        if (pages == null) return null;
+        long expanded = System.nanoTime();
+        List<Map<String, Object>> volumes = buildVolumes(book, expander, pages);
+        long serialized = System.nanoTime();
+        if (pageCache != null) pageCache.end();
+        return new Result(name, getInt(book, "Version", 0), volumes, pages.size(), expander.getIncludes(),
+                          expanded - start, 0L, serialized - expanded);
+    }
+
+    /**
+     * JSON parsing stage, building the whole tree.
+     * @throws ClassCastException if the JSON is not a dictionary
+     */
+    static Map<String, Object> parseJson(String json) throws ParseException {
+        @SuppressWarnings("unchecked")
+        final Map<String, Object> map = (Map<String, Object>)new JSONParser().parse(json);
+        return map;
+    }
+
+    // Typed accessors for the parsed JSON. They convert values the
+    // same way ConfigurationSection does.
+
+    static boolean isSet(Map<?, ?> map, String key) {
+        return map.get(key) != null;
+    }
+
+    static String getString(Map<?, ?> map, String key, String dfl) {
+        Object o = map.get(key);
+        return o != null ? o.toString() : dfl;
+    }
+
+    static int getInt(Map<?, ?> map, String key, int dfl) {
+        Object o = map.get(key);
+        return o instanceof Number ? ((Number)o).intValue() : dfl;
+    }
+
+    static boolean getBoolean(Map<?, ?> map, String key, boolean dfl) {
+        Object o = map.get(key);
+        return o instanceof Boolean ? (Boolean)o : dfl;
+    }
+
+    static String format(String str) {
+        if (str == null) return "";
+        return ChatColor.translateAlternateColorCodes('&', str);
+    }
+
+    /**
+     * The text which stands for a placeholder until it is filled in.
+     * The key is the placeholder name, optionally followed by '|' and
+     * an argument.
+     */
+    static String slot(String key) {
+        return SLOT + key.replace(String.valueOf(SLOT), "") + SLOT;
+    }
+
+    /**
+     * Check the number of arguments of a known inline tag. Unknown
+     * tags are reported separately.
+     */
+    static boolean isWellFormed(String[] toks) {
+        if (toks.length == 0) return false;
+        switch (toks[0]) {
+        case "command": case "url": case "page":
+            return toks.length >= 3 && toks.length <= 4;
+        case "tooltip":
+            return toks.length == 3;
+        case "chapter": case "anchor":
+            return toks.length == 2;
+        case "player":
+            return toks.length == 1;
+        case "placeholder":
+            return toks.length >= 2 && toks.length <= 3;
+        default:
+            return true;
+        }
+    }
+
+    /**
+     * Tag expansion stage: walk the parsed JSON and turn the page list into lists of text
+     * components, add the table of contents and resolve references
+     * to page numbers. Returns null if there are no pages.
+     */
+    List<List<Object>> expandPages(Map<?, ?> book, String name) {
+        Object pagesObject = book.get("pages");
+        if (!(pagesObject instanceof List)) return null;
+        List<?> pageList = (List<?>)pagesObject;
+        if (pageList.isEmpty()) return null;
+        PageExpander expander = new PageExpander(name);
+        for (Object o: pageList) expander.add(o);
+        return expander.finish(getBoolean(book, "TableOfContents", false));
+    }
+
+    /**
+     * Tag expansion of one page list element at a time, so the
+     * whole list never needs to be in memory.
+     */
+    final class PageExpander {
+        private final String name;
+        private final List<List<Object>> pages = new ArrayList<>();
+        private final Map<String, Integer> anchors = new HashMap<>();
+        private final Map<String, Integer> chapters = new LinkedHashMap<>();
+        private final List<Link> links = new ArrayList<>();
+        private final Map<String, String> includes = new LinkedHashMap<>();
+        private final List<String> includeStack = new ArrayList<>();
+        // Indexes of pages which were compiled entirely from
+        // fragments, before the table of contents is added
+        private final List<Integer> fragmentPages = new ArrayList<>();
+        // Number of pages before the first one, for messages
+        private final int pageOffset;
+        // Elements of the current unit, if the page cache is used
+        private final List<Object> unitElements;
+        private List<Object> page = new ArrayList<>();
+        private int elementCount = 0;
+        private boolean failed = false;
+        private int shift = 0;
+
+        PageExpander(final String name) {
+            this.name = name;
+            this.pageOffset = 0;
+            this.unitElements = pageCache != null ? new ArrayList<>() : null;
+            if (pageCache != null) pageCache.begin();
+            page.add("");
+        }
+
+        /**
+         * Expand one unit on its own, starting after the given
+         * number of pages.
+         */
+        private PageExpander(final String name, final int pageOffset) {
+            this.name = name;
+            this.pageOffset = pageOffset;
+            this.unitElements = null;
+            page.add("");
+        }
+
+        void add(Object o) {
+            if (unitElements == null) {
+                expand(o);
+                return;
+            }
+            unitElements.add(o);
+            if (o instanceof String) addUnit();
+        }
+
+        /**
+         * Take the current unit from the page cache, or expand it
+         * and put it there.
+         */
+        private void addUnit() {
+            if (unitElements.isEmpty()) return;
+            String hash = pageCache.hash(unitElements);
+            Unit unit = pageCache.getUnit(hash, fragments);
+            if (unit == null) {
+                PageExpander expander = new PageExpander(name, pages.size());
+                for (Object o: unitElements) expander.expand(o);
+                unit = new Unit(expander.pages, expander.anchors, expander.chapters, expander.links,
+                                expander.includes, expander.fragmentPages, expander.elementCount, expander.failed);
+                if (!unit.failed) pageCache.putUnit(hash, unit);
+            }
+            unitElements.clear();
+            int offset = pages.size();
+            pages.addAll(unit.pages);
+            for (Map.Entry<String, Integer> it: unit.anchors.entrySet()) anchors.put(it.getKey(), it.getValue() + offset);
+            for (Map.Entry<String, Integer> it: unit.chapters.entrySet()) chapters.put(it.getKey(), it.getValue() + offset);
+            for (Link link: unit.links) links.add(new Link(link.source + offset, link.reference, link.click, link.hover));
+            for (Map.Entry<String, String> it: unit.includes.entrySet()) {
+                if (!includes.containsKey(it.getKey())) includes.put(it.getKey(), it.getValue());
+            }
+            for (int i: unit.fragmentPages) fragmentPages.add(i + offset);
+            elementCount += unit.elementCount;
+            if (unit.failed) failed = true;
+        }
+
+        private void expand(Object o) {
+            if (o instanceof Map && isSet((Map<?, ?>)o, "include")) {
+                include(getString((Map<?, ?>)o, "include", null));
+                return;
+            }
+            elementCount += 1;
+            if (o instanceof Map) {
+                final Map<?, ?> element = (Map<?, ?>)o;
+                Map<String, Object> map = new HashMap<>();
+                if (isSet(element, "chapter")) {
+                    String chapterName = getString(element, "chapter", null);
+                    chapters.put(chapterName, pages.size());
+                    anchors.put(chapterName, pages.size());
+                }
+                if (isSet(element, "anchor")) {
+                    anchors.put(getString(element, "anchor", null), pages.size());
+                }
+                if (isSet(element, "text")) {
+                    map.put("text", format(getString(element, "text", null)));
+                }
+                if (isSet(element, "placeholder")) {
+                    map.put("text", slot(getString(element, "placeholder", null)));
+                }
+                final String[] ims = {"color", "strikethrough", "underlined", "bold", "italic", "obfuscated", "insertion"};
+                for (String key: ims) {
+                    if (isSet(element, key)) {
+                        map.put(key, element.get(key));
+                    }
+                }
+                if (isSet(element, "tooltip")) {
+                    Map<String, Object> tooltip = new HashMap<>();
+                    tooltip.put("action", "show_text");
+                    tooltip.put("value", format(getString(element, "tooltip", null)));
+                    map.put("hoverEvent", tooltip);
+                }
+                if (isSet(element, "command")) {
+                    Map<String, Object> command = new HashMap<>();
+                    command.put("action", "run_command");
+                    command.put("value", getString(element, "command", null));
+                    map.put("clickEvent", command);
+                }
+                if (isSet(element, "url")) {
+                    Map<String, Object> url = new HashMap<>();
+                    url.put("action", "open_url");
+                    url.put("value", getString(element, "url", null));
+                    map.put("clickEvent", url);
+                }
+                if (isSet(element, "page")) {
+                    Map<String, Object> pageLink = new HashMap<>();
+                    pageLink.put("action", "change_page");
+                    pageLink.put("value", getInt(element, "page", 0));
+                    map.put("clickEvent", pageLink);
+                }
+                if (isSet(element, "reference")) {
+                    Map<String, Object> reference = new HashMap<>();
+                    reference.put("action", "change_page");
+                    reference.put("value", getString(element, "reference", null));
+                    map.put("clickEvent", reference);
+                    links.add(new Link(pages.size(), getString(element, "reference", null), reference, null));
+                }
+                if (!map.isEmpty()) page.add(map);
+            } else if (o instanceof String) {
+                String par = (String)o;
+                try {
+                    InlineTagLexer lexer = new InlineTagLexer(par);
+                    for (InlineTagLexer.Token token = lexer.next(); token != InlineTagLexer.Token.END; token = lexer.next()) {
+                        if (token == InlineTagLexer.Token.TEXT) {
+                            page.add(format(lexer.getText()));
+                            continue;
+                        }
+                        String[] toks = lexer.getTagArgs();
+                        if (!isWellFormed(toks)) {
+                            logger.warning("Malformed tag in manual " + name + " page " + (pageOffset + pages.size() + 1) + " at " + lexer.getPosition()
+                                                + ": {" + String.join("|", toks) + "}");
+                            if (toks.length == 0) continue;
+                        }
+                        Map<String, Object> tag = new HashMap<>();
+                        switch (toks[0]) {
+                        case "command":
+                            if (toks.length >= 3 && toks.length <= 4) {
+                                tag.put("text", format(toks[1]) + ChatColor.RESET);
+                                Map<String, Object> event = new HashMap<>();
+                                event.put("action", "run_command");
+                                event.put("value", toks[2]);
+                                tag.put("clickEvent", event);
+                            }
+                            if (toks.length >= 4) {
+                                Map<String, Object> event = new HashMap<>();
+                                event.put("action", "show_text");
+                                event.put("value", format(toks[3]));
+                                tag.put("hoverEvent", event);
+                            }
+                            break;
+                        case "url":
+                            if (toks.length >= 3 && toks.length <= 4) {
+                                tag.put("text", format(toks[1]) + ChatColor.RESET);
+                                Map<String, Object> event = new HashMap<>();
+                                event.put("action", "open_url");
+                                event.put("value", toks[2]);
+                                tag.put("clickEvent", event);
+                            }
+                            if (toks.length >= 4) {
+                                Map<String, Object> event = new HashMap<>();
+                                event.put("action", "show_text");
+                                event.put("value", format(toks[3]));
+                                tag.put("hoverEvent", event);
+                            }
+                            break;
+                        case "tooltip":
+                            if (toks.length == 3) {
+                                tag.put("text", format(toks[1]) + ChatColor.RESET);
+                                Map<String, Object> event = new HashMap<>();
+                                event.put("action", "show_text");
+                                event.put("value", format(toks[2]));
+                                tag.put("hoverEvent", event);
+                            }
+                            break;
+                        case "page":
+                            if (toks.length >= 3 && toks.length <= 4) {
+                                tag.put("text", format(toks[1]) + ChatColor.RESET);
+                                Map<String, Object> event = new HashMap<>();
+                                event.put("action", "change_page");
+                                try {
+                                    event.put("value", Integer.parseInt(toks[2]));
+                                } catch (NumberFormatException nfe) { }
+                                tag.put("clickEvent", event);
+                            }
+                            if (toks.length >= 4) {
+                                Map<String, Object> event = new HashMap<>();
+                                event.put("action", "show_text");
+                                event.put("value", format(toks[3]));
+                                tag.put("hoverEvent", event);
+                            }
+                        case "chapter":
+                            if (toks.length == 2) {
+                                chapters.put(toks[1], pages.size());
+                                anchors.put(toks[1], pages.size());
+                            }
+                        case "anchor":
+                            if (toks.length == 2) {
+                                anchors.put(toks[1], pages.size());
+                            }
+                            break;
+                        case "player":
+                            page.add(slot("player"));
+                            break;
+                        case "placeholder":
+                            if (toks.length >= 2 && toks.length <= 3) {
+                                page.add(slot(toks.length == 3 ? toks[1] + "|" + toks[2] : toks[1]));
+                            }
+                            break;
+                        default:
+                            logger.warning("Unknown tag in manual " + name + " page " + (pageOffset + pages.size() + 1) + " at " + lexer.getPosition() + ": " + toks[0]);
+                        }
+                        if (!tag.isEmpty()) page.add(tag);
+                    }
+                    for (String problem: lexer.getProblems()) {
+                        logger.warning("Manual " + name + " page " + (pageOffset + pages.size() + 1) + ": " + problem);
+                    }
+                    pages.add(page);
+                    page = new ArrayList<>();
+                    page.add("");
+                } catch (RuntimeException re) {
+                    logger.log(Level.SEVERE, "Manual " + name + " page " + (pageOffset + pages.size() + 1) + ": " + re, re);
+                    failed = true;
+                }
+            }
+        }
+
+        /**
+         * Add the elements of a fragment as if they were written in
+         * place of the include.
+         */
+        private void include(String fragmentName) {
+            Fragment fragment = fragments != null ? fragments.get(fragmentName) : null;
+            if (!includes.containsKey(fragmentName)) {
+                includes.put(fragmentName, fragment != null ? fragment.getHash() : null);
+            }
+            if (fragment == null || fragment.getElements() == null) {
+                String problem = fragment != null && fragment.getProblem() != null ? fragment.getProblem() : "not found";
+                logger.warning("Fragment " + fragmentName + " in manual " + name + " page " + (pageOffset + pages.size() + 1) + ": " + problem);
+                return;
+            }
+            if (includeStack.contains(fragmentName)) {
+                logger.warning("Fragment includes itself in manual " + name + ": " + String.join(" > ", includeStack) + " > " + fragmentName);
+                return;
+            }
+            includeStack.add(fragmentName);
+            int firstPage = page.size() == 1 ? pages.size() : pages.size() + 1;
+            for (Object o: fragment.getElements()) add(o);
+            includeStack.remove(includeStack.size() - 1);
+            if (includeStack.isEmpty()) {
+                for (int i = firstPage; i < pages.size(); i += 1) fragmentPages.add(i);
+            }
+        }
+
+        Map<String, String> getIncludes() {
+            return includes;
+        }
+
+        /**
+         * Indexes of the finished pages which came from fragments.
+         */
+        List<Integer> getFragmentPages() {
+            List<Integer> result = new ArrayList<>(fragmentPages.size());
+            for (Integer i: fragmentPages) result.add(i + shift);
+            return result;
+        }
+
+        /**
+         * Add the table of contents and resolve references, assuming
+         * that all pages go into one volume. Returns null if there
+         * were no elements or one of them failed.
+         */
+        List<List<Object>> finish(boolean tableOfContents) {
+            if (unitElements != null) addUnit();
+            if (failed || elementCount == 0) return null;
+            shift = tableOfContents ? 1 : 0;
+            for (Link link: links) {
+                if (link.reference == null) continue;
+                String refname = link.reference;
+                Integer pageNo = anchors.get(refname);
+                if (pageNo == null) {
+                    logger.warning("Reference not found in manual " + name + ": " + refname);
+                    pageNo = 0;
+                }
+                link.source += shift;
+                link.target = pageNo + shift;
+            }
+            if (tableOfContents) {
+                page = new ArrayList<>();
+                page.add(format("&lTable of Contents&r\n"));
+                int chapterNo = 0;
+                for (String chapter: chapters.keySet()) {
+                    chapterNo += 1;
+                    Map<String, Object> tocEntry = new HashMap<>();
+                    tocEntry.put("text", chapterNo + ". " + ChatColor.BLUE + chapter);
+                    Map<String, Object> clickEvent = new HashMap<>();
+                    tocEntry.put("clickEvent", clickEvent);
+                    Map<String, Object> hoverEvent = new HashMap<>();
+                    tocEntry.put("hoverEvent", hoverEvent);
+                    hoverEvent.put("action", "show_text");
+                    Link link = new Link(0, null, clickEvent, hoverEvent);
+                    link.target = chapters.get(chapter) + 1;
+                    links.add(link);
+                    page.add("\n");
+                    page.add(tocEntry);
+                }
+                pages.add(0, page);
+            }
+            resolve(Collections.singletonList(0));
+            return pages;
+        }
+
+        /**
+         * Point every link at its page, given the index of the first
+         * page of each volume. Links into another volume switch to
+         * that volume instead.
+         */
+        void resolve(List<Integer> starts) {
+            for (Link link: links) {
+                int sourceVolume = volumeOf(starts, link.source);
+                int targetVolume = volumeOf(starts, link.target);
+                if (sourceVolume == targetVolume) {
+                    int pageNo = link.target - starts.get(targetVolume) + 1;
+                    link.click.put("action", "change_page");
+                    link.click.put("value", pageNo);
+                    if (link.hover != null) link.hover.put("value", "Jump to page " + pageNo);
+                } else {
+                    link.click.put("action", "run_command");
+                    link.click.put("value", VOLUME_COMMAND + " " + name + " " + (targetVolume + 1));
+                    if (link.hover != null) link.hover.put("value", "Open volume " + (targetVolume + 1));
+                }
+            }
+        }
+
+        /**
+         * Link each volume to the one before and after it, at the
+         * start of its first and the end of its last page.
+         */
+        void addNavigation(List<Integer> starts) {
+            for (int i = 0; i < starts.size(); i += 1) {
+                // Copy the pages because the page cache may keep them
+                if (i > 0) {
+                    List<Object> first = new ArrayList<>(pages.get(starts.get(i)));
+                    first.add(1, volumeLink("\u00AB Volume " + i + "\n", i));
+                    pages.set(starts.get(i), first);
+                }
+                if (i + 1 < starts.size()) {
+                    List<Object> last = new ArrayList<>(pages.get(starts.get(i + 1) - 1));
+                    last.add(volumeLink("\n\nVolume " + (i + 2) + " \u00BB", i + 2));
+                    pages.set(starts.get(i + 1) - 1, last);
+                }
+            }
+        }
+
+        private Map<String, Object> volumeLink(String text, int volume) {
+            Map<String, Object> link = new HashMap<>();
+            link.put("text", ChatColor.BLUE + text + ChatColor.RESET);
+            Map<String, Object> clickEvent = new HashMap<>();
+            clickEvent.put("action", "run_command");
+            clickEvent.put("value", VOLUME_COMMAND + " " + name + " " + volume);
+            link.put("clickEvent", clickEvent);
+            return link;
+        }
+
+        /**
+         * Serialize the pages, taking those whose links resolved
+         * the same as before from the page cache.
+         */
+        List<String> serialize() {
+            if (pageCache == null) return serializePages(pages);
+            List<List<Object>> signatures = new ArrayList<>(pages.size());
+            for (int i = 0; i < pages.size(); i += 1) signatures.add(null);
+            for (Link link: links) {
+                if (link.source >= pages.size()) continue;
+                List<Object> signature = signatures.get(link.source);
+                if (signature == null) {
+                    signature = new ArrayList<>();
+                    signatures.set(link.source, signature);
+                }
+                signature.add(link.click.get("action"));
+                signature.add(link.click.get("value"));
+                signature.add(link.hover != null ? link.hover.get("value") : null);
+            }
+            List<String> result = new ArrayList<>(pages.size());
+            for (int i = 0; i < pages.size(); i += 1) {
+                List<Object> signature = signatures.get(i) != null ? signatures.get(i) : Collections.emptyList();
+                String json = pageCache.getPage(pages.get(i), signature);
+                if (json == null) {
+                    json = serializePage(pages.get(i));
+                    pageCache.putPage(pages.get(i), signature, json);
+                }
+                result.add(json);
+            }
+            return result;
+        }
+
+        String getName() {
+            return name;
+        }
+    }
+
+    /**
+     * The expanded pages of a run of page list elements which ends
+     * with a text element, with page indexes counted from the first
+     * page of the run. Units are kept in the page cache and never
+     * modified, except for the click and hover events of their
+     * links.
+     */
+    @RequiredArgsConstructor
+    static final class Unit {
+        private final List<List<Object>> pages;
+        private final Map<String, Integer> anchors;
+        private final Map<String, Integer> chapters;
+        private final List<Link> links;
+        private final Map<String, String> includes;
+        private final List<Integer> fragmentPages;
+        private final int elementCount;
+        private final boolean failed;
+
+        /**
+         * Check that all included fragments are unchanged.
+         */
+        boolean isCurrent(Fragments fragments) {
+            for (Map.Entry<String, String> it: includes.entrySet()) {
+                Fragment fragment = fragments != null ? fragments.get(it.getKey()) : null;
+                String hash = fragment != null ? fragment.getHash() : null;
+                if (!Objects.equals(hash, it.getValue())) return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * A change_page click event whose page number depends on how the
+     * pages get split into volumes.
+     */
+    private static final class Link {
+        private int source;
+        private int target;
+        private final String reference; // anchor name, or null
+        private final Map<String, Object> click;
+        private final Map<String, Object> hover;
+
+        Link(final int source, final String reference, final Map<String, Object> click, final Map<String, Object> hover) {
+            this.source = source;
+            this.reference = reference;
+            this.click = click;
+            this.hover = hover;
+        }
+    }
+
+    private static int volumeOf(List<Integer> starts, int pageIndex) {
+        int result = 0;
+        while (result + 1 < starts.size() && starts.get(result + 1) <= pageIndex) result += 1;
+        return result;
+    }
+
+    /**
+     * Serialize the pages and build the item tag of each volume. If
+     * the pages do not fit into one item, they are split into
+     * volumes, links are resolved again and the volumes get linked
+     * to each other.
+     */
+    List<Map<String, Object>> buildVolumes(Map<?, ?> book, PageExpander expander, List<List<Object>> pages) {
+        List<String> serialized = expander.serialize();
+        List<Integer> starts = splitVolumes(expander.getName(), serialized);
+        if (starts.size() > 1) {
+            expander.resolve(starts);
+            expander.addNavigation(starts);
+            serialized = expander.serialize();
+        }
+        if (fragments != null) {
+            for (int i: expander.getFragmentPages()) serialized.set(i, fragments.intern(serialized.get(i)));
+        }
+        List<Map<String, Object>> volumes = new ArrayList<>(starts.size());
+        for (int i = 0; i < starts.size(); i += 1) {
+            int end = i + 1 < starts.size() ? starts.get(i + 1) : serialized.size();
+            Map<String, Object> itemTag = buildItemTag(book, new ArrayList<>(serialized.subList(starts.get(i), end)));
+            if (starts.size() > 1) itemTag.put("title", itemTag.get("title") + " " + (i + 1) + "/" + starts.size());
+            volumes.add(itemTag);
+        }
+        return volumes;
+    }
+
+    /**
+     * Find where each volume starts so that the pages of a volume
+     * stay within the byte budget. A page which is too large by
+     * itself gets a volume of its own.
+     */
+    List<Integer> splitVolumes(String name, List<String> pages) {
+        List<Integer> starts = new ArrayList<>();
+        starts.add(0);
+        long total = VOLUME_OVERHEAD;
+        for (int i = 0; i < pages.size(); i += 1) {
+            long size = utf8Length(pages.get(i)) + PAGE_OVERHEAD;
+            if (size + VOLUME_OVERHEAD > volumeMaxBytes) {
+                logger.warning("Manual " + name + " page " + (i + 1) + " is larger than the volume size limit: " + size + " bytes");
+            }
+            if (total + size > volumeMaxBytes && i > starts.get(starts.size() - 1)) {
+                starts.add(i);
+                total = VOLUME_OVERHEAD;
+            }
+            total += size;
+        }
+        return starts;
+    }
+
+    static long utf8Length(String str) {
+        long result = 0L;
+        for (int i = 0; i < str.length(); i += 1) {
+            char c = str.charAt(i);
+            if (c < 0x80) {
+                result += 1L;
+            } else if (c < 0x800) {
+                result += 2L;
+            } else if (Character.isHighSurrogate(c)) {
+                result += 4L;
+                i += 1;
+            } else {
+                result += 3L;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Serialization stage: turn each page into its JSON string.
+     */
+    static List<String> serializePages(List<List<Object>> pages) {
+        List<String> formattedPages = new ArrayList<>();
+        for (List<Object> oldPage: pages) formattedPages.add(serializePage(oldPage));
+        return formattedPages;
+    }
+
+    static String serializePage(List<Object> page) {
+        if (page.size() == 1) return JSONValue.toJSONString(page.get(0));
+        return JSONValue.toJSONString(page);
+    }
+
+    static Map<String, Object> buildItemTag(Map<?, ?> book, List<String> formattedPages) {
+        Map<String, Object> itemTag = new HashMap<>();
+        itemTag.put("generation", getInt(book, "generation", 0));
+        itemTag.put("author", format(getString(book, "author", "author")));
+        itemTag.put("title", format(getString(book, "title", "title")));
+        itemTag.put("pages", formattedPages);
+        itemTag.put("resolved", true);
+        return itemTag;
+    }
+}
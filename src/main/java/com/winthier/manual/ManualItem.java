@@ -1,19 +1,30 @@
 package com.winthier.manual;
 
+import com.winthier.custom.CustomPlugin;
 import com.winthier.custom.item.CustomItem;
 import com.winthier.custom.item.UncraftableItem;
 import com.winthier.custom.item.UpdatableItem;
 import com.winthier.custom.util.Dirty;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
 import lombok.RequiredArgsConstructor;
 import org.bukkit.Material;
 import org.bukkit.command.CommandSender;
+import org.bukkit.entity.Player;
 import org.bukkit.inventory.ItemStack;
 
 @RequiredArgsConstructor
 public final class ManualItem implements CustomItem, UpdatableItem, UncraftableItem {
     private final ManualPlugin plugin;
     public static final String CUSTOM_ID = "manual:manual";
+    private final LongAdder updateChecks = new LongAdder();
+    private final LongAdder staleChecks = new LongAdder();
+    private final LongAdder restamped = new LongAdder();
+    private final LongAdder rewritten = new LongAdder();
 
     @Override
     public String getCustomId() {
@@ -35,7 +46,14 @@ public final class ManualItem implements CustomItem, UpdatableItem, UncraftableI
                     String name = (String)value;
                     ManualPlugin.Manual manual = plugin.getManual(name);
                     if (manual != null) {
-                        setManual(item, manual);
+                        setManual(item, manual, plugin.getVersions().getStamp(manual.getName()));
+                        fillPlaceholders(item, manual, null, plugin);
+                    } else {
+                        // Still loading. Remember the name and let
+                        // the next update fill in the pages.
+                        Dirty.TagWrapper conf = Dirty.TagWrapper.getItemConfigOf(item);
+                        conf.setString("name", name);
+                        conf.setInt("UpdateVersion", -1);
                     }
                 }
                 break;
@@ -45,24 +63,83 @@ public final class ManualItem implements CustomItem, UpdatableItem, UncraftableI
         }
     }
 
+    /**
+     * Items carry the version table stamp of their manual from when
+     * they were last written. Only items whose own manual changed
+     * since reach updateItem().
+     */
     @Override
     public int getUpdateVersion(ItemStack item) {
+        updateChecks.increment();
+        return plugin.getVersions().getStamp(getName(item));
+    }
+
+    @Override
+    public ItemStack updateItem(ItemStack item) {
+        staleChecks.increment();
         Dirty.TagWrapper conf = Dirty.TagWrapper.getItemConfigOf(item);
         String bookName = conf.getString("name");
-        if (bookName == null || bookName.isEmpty()) return 0;
+        if (bookName == null || bookName.isEmpty()) return null;
+        plugin.getStats().recordUpdate(ManualPlugin.baseName(bookName));
         ManualPlugin.Manual manual = plugin.getManual(bookName);
-        if (manual == null) return 0;
-        return manual.getVersion();
+        if (manual == null) return null;
+        VersionTable versions = plugin.getVersions();
+        if (versions.isCurrent(bookName, conf.getInt("UpdateVersion"))) {
+            // Stamped with an epoch of another manual, which items
+            // written before stamps were per manual carry.
+            conf.setInt("UpdateVersion", versions.getStamp(bookName));
+            restamped.increment();
+            return item;
+        }
+        rewritten.increment();
+        plugin.getStats().recordRewrite(ManualPlugin.baseName(bookName));
+        return plugin.replaceItem(item, manual, null);
     }
 
-    @Override
-    public ItemStack updateItem(ItemStack item) {
+    /**
+     * Replace an item whose manual changed since it was written, or
+     * which is not in the language of the player who carries it.
+     * The updateItem() callback cannot do the latter because it does
+     * not know the player.
+     * @param player the owner of the item, or null
+     * @return the new item, or null if the item is current or its
+     * manual is not loaded
+     */
+    ItemStack refreshItem(ItemStack item, Player player) {
         Dirty.TagWrapper conf = Dirty.TagWrapper.getItemConfigOf(item);
         String bookName = conf.getString("name");
         if (bookName == null || bookName.isEmpty()) return null;
+        VersionTable versions = plugin.getVersions();
+        if (player != null && followsLocale(item)) {
+            String variant = plugin.variantName(ManualPlugin.defaultName(bookName), player);
+            ManualPlugin.Manual manual = variant.equals(bookName) ? null : plugin.getManual(variant);
+            if (manual != null) {
+                rewritten.increment();
+                plugin.getStats().recordRewrite(ManualPlugin.baseName(variant));
+                return plugin.replaceItem(item, manual, player);
+            }
+        }
         ManualPlugin.Manual manual = plugin.getManual(bookName);
         if (manual == null) return null;
-        return Dirty.applyMap(item, manual.getItemTag());
+        if (versions.isCurrent(bookName, conf.getInt("UpdateVersion"))) return null;
+        rewritten.increment();
+        plugin.getStats().recordRewrite(ManualPlugin.baseName(bookName));
+        return plugin.replaceItem(item, manual, player);
+    }
+
+    /**
+     * Tell if an item follows the language of its reader. Manuals
+     * handed out by their default name do. A variant which was asked
+     * for by name, as with /manual give rules@de, does not.
+     */
+    static boolean followsLocale(ItemStack item) {
+        Dirty.TagWrapper conf = Dirty.TagWrapper.getItemConfigOf(item);
+        String name = conf.getString("name");
+        return name != null && (name.indexOf('@') < 0 || conf.getInt("FollowLocale") == 1);
+    }
+
+    static void setFollowsLocale(ItemStack item) {
+        Dirty.TagWrapper.getItemConfigOf(item).setInt("FollowLocale", 1);
     }
 
     static String getName(ItemStack item) {
@@ -70,14 +147,84 @@ public final class ManualItem implements CustomItem, UpdatableItem, UncraftableI
         return conf.getString("name");
     }
 
-    static void setManual(ItemStack item, ManualPlugin.Manual manual) {
+    /**
+     * Build the prebuilt item of a manual. Main thread only.
+     */
+    static ItemStack createTemplate(ManualPlugin.Manual manual) {
+        ItemStack item = CustomPlugin.getInstance().getItemManager().spawnItemStack(CUSTOM_ID, 1);
+        setManual(item, manual, -1);
+        return item;
+    }
+
+    /**
+     * Copy the prebuilt item of a manual and stamp it. The item is
+     * built the first time a manual is handed out, so that loading
+     * many manuals at once does not write them all in one tick. Main
+     * thread only.
+     */
+    static ItemStack createItem(ManualPlugin.Manual manual, int amount, int stamp) {
+        ItemStack template = manual.getItem();
+        if (template == null) {
+            template = createTemplate(manual);
+            manual.setItem(template);
+        }
+        ItemStack item = template.clone();
+        Dirty.TagWrapper.getItemConfigOf(item).setInt("UpdateVersion", stamp);
+        item.setAmount(amount);
+        return item;
+    }
+
+    /**
+     * Write the pages with placeholders, filled in for a player,
+     * into the item. Pages without placeholders are used as they
+     * are. The item remembers a hash of what it was filled with, so
+     * reopening a manual whose values did not change writes nothing.
+     * @param player the owner, or null to leave the placeholders empty
+     */
+    static void fillPlaceholders(ItemStack item, ManualPlugin.Manual manual, Player player, ManualPlugin plugin) {
+        if (manual.getPageTemplates().isEmpty()) return;
+        Map<Integer, String> filled = new HashMap<>();
+        int hash = manual.getName().hashCode() * 31 + manual.getVersion();
+        for (Map.Entry<Integer, PageTemplate> entry: manual.getPageTemplates().entrySet()) {
+            String page = entry.getValue().fill(key -> plugin.resolvePlaceholder(player, key));
+            filled.put(entry.getKey(), page);
+            hash = hash * 31 + entry.getKey() * 17 + page.hashCode();
+        }
+        String fill = Integer.toHexString(hash);
+        Dirty.TagWrapper conf = Dirty.TagWrapper.getItemConfigOf(item);
+        if (fill.equals(conf.getString("Filled"))) return;
+        List<Object> pages = new ArrayList<>((List<?>)manual.getItemTag().get("pages"));
+        for (Map.Entry<Integer, String> entry: filled.entrySet()) pages.set(entry.getKey(), entry.getValue());
+        Dirty.TagWrapper.getItemTagOf(item).applyMap(Collections.<String, Object>singletonMap("pages", pages));
+        conf.setString("Filled", fill);
+    }
+
+    static void setManual(ItemStack item, ManualPlugin.Manual manual, int stamp) {
         Dirty.TagWrapper conf = Dirty.TagWrapper.getItemConfigOf(item);
         conf.setString("name", manual.getName());
-        conf.setInt("UpdateVersion", manual.getVersion());
+        conf.setInt("UpdateVersion", stamp);
+        conf.setString("Filled", "");
+        conf.setInt("FollowLocale", 0);
         conf = Dirty.TagWrapper.getItemTagOf(item);
         conf.applyMap(manual.getItemTag());
     }
 
+    long getUpdateChecks() {
+        return updateChecks.sum();
+    }
+
+    long getStaleChecks() {
+        return staleChecks.sum();
+    }
+
+    long getRestamped() {
+        return restamped.sum();
+    }
+
+    long getRewritten() {
+        return rewritten.sum();
+    }
+
     @Override
     public void handleMessage(ItemStack item, CommandSender sender, String[] args) {
         if (args.length == 0) return;
@@ -89,19 +236,21 @@ public final class ManualItem implements CustomItem, UpdatableItem, UncraftableI
             } else if (args.length >= 2) {
                 StringBuilder sb = new StringBuilder(args[1]);
                 for (int i = 2; i < args.length; i += 1) sb.append(" ").append(args[i]);
-                String name = sb.toString();
-                ManualPlugin.Manual manual = plugin.getManual(name);
-                if (manual == null) {
-                    sender.sendMessage("Manual not found: " + name);
-                    return;
-                }
-                setManual(item, manual);
-                sender.sendMessage("Manual updated to " + manual.getName() + " version " + manual.getVersion() + ".");
+                final String name = sb.toString();
+                plugin.loadManual(name).thenAccept(manual -> {
+                        if (manual == null) {
+                            sender.sendMessage("Manual not found: " + name);
+                            return;
+                        }
+                        setManual(item, manual, plugin.getVersions().getStamp(manual.getName()));
+                        fillPlaceholders(item, manual, sender instanceof Player ? (Player)sender : null, plugin);
+                        sender.sendMessage("Manual updated to " + manual.getName() + " version " + manual.getVersion() + ".");
+                    });
             }
             break;
         case "version":
             Dirty.TagWrapper conf = Dirty.TagWrapper.getItemConfigOf(item);
-            sender.sendMessage("Update version: " + conf.getInt("UpdateVersion"));
+            sender.sendMessage("Update stamp: " + conf.getInt("UpdateVersion") + ", current: " + plugin.getVersions().getStamp(conf.getString("name")));
             break;
         default: break;
         }
@@ -2,98 +2,221 @@ package com.winthier.manual;
 
 import com.winthier.custom.CustomPlugin;
 import com.winthier.custom.event.CustomRegisterEvent;
-import com.winthier.custom.util.Dirty;
-import com.winthier.custom.util.Items;
+import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
+import java.io.Reader;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
-import java.util.Scanner;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+import java.util.logging.Level;
+import lombok.AccessLevel;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.Setter;
 import lombok.Value;
-import org.bukkit.ChatColor;
+import lombok.experimental.NonFinal;
 import org.bukkit.Material;
+import org.bukkit.Statistic;
+import org.bukkit.World;
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandSender;
-import org.bukkit.configuration.ConfigurationSection;
-import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.entity.Entity;
 import org.bukkit.entity.Player;
 import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
+import org.bukkit.event.block.Action;
+import org.bukkit.event.player.PlayerInteractEvent;
+import org.bukkit.event.player.PlayerLocaleChangeEvent;
+import org.bukkit.inventory.EquipmentSlot;
+import org.bukkit.inventory.Inventory;
 import org.bukkit.inventory.ItemStack;
 import org.bukkit.plugin.java.JavaPlugin;
-import org.json.simple.JSONValue;
-import org.json.simple.parser.JSONParser;
-import org.json.simple.parser.ParseException;
 
 public final class ManualPlugin extends JavaPlugin implements Listener {
-    private final Map<String, Manual> manuals = new HashMap<>();
+    private volatile ManualCache manuals = new ManualCache(Long.MAX_VALUE, 0L);
+    // Books being compiled by base name, with all the manuals their
+    // compile installed
+    private final SingleFlight<String, Map<String, Manual>> pending = new SingleFlight<>();
+    private volatile int loadGeneration = 0;
+    private ExecutorService workers;
+    // Downloads for /manual url, kept apart so that slow hosts cannot
+    // hold up compiling
+    private ExecutorService urlWorkers;
+    private final Map<String, Long> bookStamps = new HashMap<>();
+    private final Map<String, Long> fragmentStamps = new HashMap<>();
+    // Book name -> fragments included by its last compilation
+    private final Map<String, Set<String>> bookIncludes = new ConcurrentHashMap<>();
+    // Names of the books which are locale variants, see variantName()
+    private final Set<String> variants = ConcurrentHashMap.newKeySet();
+    private FragmentTable fragments;
+    private CompileCache compileCache;
+    // Book name -> pages of its last compilation, if incremental,
+    // for books whose manuals are in the cache
+    private final Map<String, PageCache> pageCaches = new ConcurrentHashMap<>();
+    private volatile boolean incrementalCompile = true;
+    private final Map<String, BiFunction<Player, String, String>> placeholders = new ConcurrentHashMap<>();
+    private boolean scanningBooks = false;
+    private volatile boolean useCompileCache = true;
+    private UrlFetcher urlFetcher;
+    @Getter private VersionTable versions;
+    private ManualItem manualItem;
+    @Getter private final ManualStats stats = new ManualStats();
+    private RefreshJob refreshJob;
 
+    /**
+     * A compiled manual, or one volume of it. The item is a complete
+     * manual item with all pages, built on the main thread the first
+     * time the manual is handed out, so every later copy is cheap.
+     * It is null until then.
+     *
+     * Volumes after the first are stored under the name of the book
+     * followed by '#' and the volume number, see volumeName().
+     *
+     * Pages with placeholders have a template so they can be filled
+     * in for each player.
+     */
     @Value
     static class Manual {
         private String name;
         private int version;
         private Map<String, Object> itemTag;
+        @NonFinal @Setter(AccessLevel.PACKAGE) @EqualsAndHashCode.Exclude
         private ItemStack item;
+        private int volume;
+        private int volumes;
+        private Map<Integer, PageTemplate> pageTemplates;
     }
 
     @Override
     public void onEnable() {
-        new File(getDataFolder(), "books").mkdirs();
+        saveDefaultConfig();
+        getBooksFolder().mkdirs();
+        getFragmentsFolder().mkdirs();
+        fragments = new FragmentTable(getFragmentsFolder());
+        compileCache = new CompileCache(new File(getDataFolder(), "cache"), getLogger(), getVolumeMaxBytes());
+        useCompileCache = getConfig().getBoolean("CompileCache", true);
+        incrementalCompile = getConfig().getBoolean("IncrementalCompile", true);
+        versions = new VersionTable(new File(getDataFolder(), "versions.json"), getLogger());
+        versions.load();
+        manuals = new ManualCache(getConfig().getLong("CacheMaxBytes", 64L * 1024L * 1024L),
+                                  getConfig().getLong("NegativeCacheSeconds", 60L) * 1000L);
+        // The pages kept for incremental compiles are as large as the
+        // manual, so they must not outlive it. Evicting a single later
+        // volume leaves the book loaded.
+        manuals.setEvictionListener(name -> {
+                if (name.equals(baseName(name))) pageCaches.remove(name);
+            });
+        urlFetcher = new UrlFetcher(getConfig().getBoolean("UrlCache", true) ? new File(getDataFolder(), "urlcache") : null,
+                                    getConfig().getInt("UrlConnectTimeout", 5) * 1000,
+                                    getConfig().getInt("UrlReadTimeout", 10) * 1000,
+                                    getConfig().getLong("UrlMaxBytes", 4L * 1024L * 1024L),
+                                    getConfig().getLong("UrlTotalTimeout", 30L) * 1000L);
+        final AtomicInteger threadCount = new AtomicInteger();
+        workers = Executors.newFixedThreadPool(Math.max(1, getConfig().getInt("Workers", 2)), r -> {
+                Thread thread = new Thread(r, "Manual-Worker-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        final AtomicInteger urlThreadCount = new AtomicInteger();
+        urlWorkers = Executors.newFixedThreadPool(Math.max(1, getConfig().getInt("UrlWorkers", 2)), r -> {
+                Thread thread = new Thread(r, "Manual-Url-" + urlThreadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        registerPlaceholder("player", (p, arg) -> p.getName());
+        registerPlaceholder("displayname", (p, arg) -> p.getDisplayName());
+        registerPlaceholder("world", (p, arg) -> p.getWorld().getName());
+        registerPlaceholder("stat", (p, arg) -> {
+                try {
+                    return Integer.toString(p.getStatistic(Statistic.valueOf(arg.toUpperCase())));
+                } catch (IllegalArgumentException iae) {
+                    return "";
+                }
+            });
         getServer().getPluginManager().registerEvents(this, this);
+        bookStamps.putAll(scanBooks(getBooksFolder()));
+        updateVariants(bookStamps.keySet());
+        fragmentStamps.putAll(scanBooks(getFragmentsFolder()));
+        if (getConfig().getBoolean("Preload", true)) preloadManuals();
+        long interval = getConfig().getLong("WatchInterval", 5L) * 20L;
+        if (interval > 0) {
+            getServer().getScheduler().runTaskTimer(this, () -> checkBooks(null), interval, interval);
+        }
+        long statsInterval = getConfig().getLong("StatsLogInterval", 0L) * 60L * 20L;
+        if (statsInterval > 0) {
+            getServer().getScheduler().runTaskTimer(this, () -> getLogger().info(statsSummary()), statsInterval, statsInterval);
+        }
     }
 
     @Override
     public void onDisable() {
         manuals.clear();
+        pending.clear();
+        pageCaches.clear();
+        loadGeneration += 1;
+        workers.shutdownNow();
+        urlWorkers.shutdownNow();
     }
 
     @Override
     public boolean onCommand(CommandSender sender, Command command, String alias, String[] args) {
         final Player player = sender instanceof Player ? (Player)sender : null;
+        if (command.getName().equals("manualvolume")) return onVolumeCommand(player, args);
         if (args.length == 0) return false;
         switch (args[0]) {
         case "give":
-            if (args.length >= 2) {
-                Manual manual = getManual(args[1]);
-                if (manual == null) {
-                    sender.sendMessage("Manual not found: " + args[1]);
-                    return true;
-                }
-                final Player target;
-                if (args.length >= 3) {
-                    target = getServer().getPlayerExact(args[2]);
-                    if (target == null) {
-                        sender.sendMessage("Player not found: " + args[2]);
-                        return true;
-                    }
+            if (args.length == 2 || args.length == 3) {
+                final String name = args[1];
+                final List<Player> targets;
+                if (args.length == 3) {
+                    targets = findTargets(sender, args[2]);
+                    if (targets == null) return true;
                 } else if (player == null) {
                     sender.sendMessage("Player required");
                     return true;
                 } else {
-                    target = player;
+                    targets = Collections.singletonList(player);
                 }
-                ItemStack item = CustomPlugin.getInstance().getItemManager().spawnItemStack(ManualItem.CUSTOM_ID, 1);
-                ManualItem.setManual(item, manual);
-                for (ItemStack drop: target.getInventory().addItem(item).values()) {
-                    Items.give(drop, target);
+                if (targets.isEmpty()) {
+                    sender.sendMessage("No players match " + args[2]);
+                    return true;
                 }
-                sender.sendMessage("Manual " + manual.getName() + " given to " + target.getName());
+                final boolean bulk = args.length == 3 && getServer().getPlayerExact(args[2]) == null;
+                loadVariants(name, targets).thenAccept(loaded -> {
+                        if (!loaded.containsKey(name)) {
+                            sender.sendMessage("Manual not found: " + name);
+                            return;
+                        }
+                        new GiveJob(this, sender, name, loaded, targets, getConfig().getInt("GiveBatchSize", 20), bulk).start();
+                    });
+            } else {
+                return false;
             }
             break;
         case "reload":
-            manuals.clear();
-            sender.sendMessage("Manuals reloaded.");
+            checkBooks(sender);
             break;
         case "info":
         case "name":
@@ -123,14 +246,22 @@ public final class ManualPlugin extends JavaPlugin implements Listener {
                     player.sendMessage("No manual in hand!");
                     return true;
                 }
-                String name = ManualItem.getName(item);
-                Manual manual = createManual(name);
-                if (manual == null) {
-                    player.sendMessage("Manual not found: " + name);
-                    return true;
-                }
-                ManualItem.setManual(item, manual);
-                player.sendMessage("Updated item in hand with " + manual.getName() + " Version " + manual.getVersion());
+                final String name = ManualItem.getName(item);
+                reloadManual(name).thenAccept(manual -> {
+                        if (manual == null) {
+                            player.sendMessage("Manual not found: " + name);
+                            return;
+                        }
+                        ItemStack hand = player.getInventory().getItemInMainHand();
+                        if (hand == null || hand.getAmount() == 0
+                            || !ManualItem.CUSTOM_ID.equals(CustomPlugin.getInstance().getItemManager().getCustomId(hand))
+                            || !name.equals(ManualItem.getName(hand))) {
+                            player.sendMessage("Manual no longer in hand!");
+                            return;
+                        }
+                        player.getInventory().setItemInMainHand(replaceItem(hand, manual, player));
+                        player.sendMessage("Updated item in hand with " + manual.getName() + " Version " + manual.getVersion());
+                    });
             }
             break;
         case "url":
@@ -142,20 +273,38 @@ public final class ManualPlugin extends JavaPlugin implements Listener {
                     player.sendMessage("Invalid URL: " + args[1]);
                     return true;
                 }
-                Manual manual = null;
-                try {
-                    HttpURLConnection hurlc = (HttpURLConnection)url.openConnection();
-                    hurlc.addRequestProperty("User-Agent", "Mozilla/4.0");
-                    String dump = new Scanner(hurlc.getInputStream(), "UTF-8").useDelimiter("\\A").next();
-                    manual = parseManual(dump, "url", player);
-                } catch (IOException ioe) {
-                    ioe.printStackTrace();
-                }
-                if (manual == null) return true;
-                ItemStack item = CustomPlugin.getInstance().getItemManager().spawnItemStack(ManualItem.CUSTOM_ID, 1);
-                ManualItem.setManual(item, manual);
-                player.getInventory().addItem(item);
-                player.sendMessage("Manual from URL given: " + url);
+                fetchManual(url, player);
+            }
+            break;
+        case "cache":
+            sender.sendMessage("Manual cache: " + manuals.size() + " entries, "
+                               + (manuals.getWeight() / 1024L) + "/" + (manuals.getMaxWeight() / 1024L) + " KiB");
+            sender.sendMessage("Hits: " + manuals.getHits()
+                               + ", negative hits: " + manuals.getNegativeHits()
+                               + ", misses: " + manuals.getMisses());
+            sender.sendMessage("Evictions: " + manuals.getEvictions()
+                               + ", expired negative entries: " + manuals.getExpirations());
+            if (manualItem != null) {
+                sender.sendMessage("Item update checks: " + manualItem.getUpdateChecks()
+                                   + ", fast path: " + (manualItem.getUpdateChecks() - manualItem.getStaleChecks())
+                                   + ", restamped: " + manualItem.getRestamped()
+                                   + ", rewritten: " + manualItem.getRewritten());
+            }
+            break;
+        case "refresh":
+            if (args.length == 1 || (args.length == 2 && args[1].equals("containers"))) {
+                startRefresh(sender, args.length == 2);
+            } else {
+                return false;
+            }
+            break;
+        case "stats":
+            if (args.length == 1) {
+                sendStats(sender);
+            } else if (args.length == 2) {
+                sendStats(sender, args[1]);
+            } else {
+                return false;
             }
             break;
         case "list":
@@ -170,289 +319,853 @@ public final class ManualPlugin extends JavaPlugin implements Listener {
         return true;
     }
 
-    @EventHandler
-    public void onCustomRegister(CustomRegisterEvent event) {
-        event.addItem(new ManualItem(this));
+    /**
+     * Swap the manual in hand for another volume of it. Players run
+     * this by clicking the volume links in the book.
+     */
+    private boolean onVolumeCommand(final Player player, String[] args) {
+        if (args.length < 2) return false;
+        if (player == null) return true;
+        // Book names may contain spaces; the volume comes last.
+        StringBuilder sb = new StringBuilder(args[0]);
+        for (int i = 1; i < args.length - 1; i += 1) sb.append(" ").append(args[i]);
+        final String base = sb.toString();
+        final int volume;
+        try {
+            volume = Integer.parseInt(args[args.length - 1]);
+        } catch (NumberFormatException nfe) {
+            return false;
+        }
+        ItemStack hand = player.getInventory().getItemInMainHand();
+        if (!isManualInHand(hand, base)) {
+            player.sendMessage("Hold the manual in your hand to switch volumes.");
+            return true;
+        }
+        loadManual(volumeName(base, volume)).thenAccept(manual -> {
+                if (manual == null) {
+                    player.sendMessage("Volume not found: " + volume);
+                    return;
+                }
+                ItemStack item = player.getInventory().getItemInMainHand();
+                if (!isManualInHand(item, base)) return;
+                player.getInventory().setItemInMainHand(replaceItem(item, manual, player));
+                player.sendMessage("Switched to volume " + volume + " of " + manual.getVolumes() + ". Open the book again.");
+            });
+        return true;
     }
 
-    static String format(String str) {
-        if (str == null) return "";
-        return ChatColor.translateAlternateColorCodes('&', str);
+    private static boolean isManualInHand(ItemStack item, String base) {
+        if (item == null || item.getAmount() == 0) return false;
+        if (!ManualItem.CUSTOM_ID.equals(CustomPlugin.getInstance().getItemManager().getCustomId(item))) return false;
+        String name = ManualItem.getName(item);
+        return name != null && baseName(name).equals(base);
     }
 
-    Manual getManual(String name) {
-        if (manuals.containsKey(name)) {
-            return manuals.get(name); // May yield null
-        } else {
-            Manual result = createManual(name);
-            manuals.put(name, result); // May store null
-            return result;
+    /**
+     * The name under which a volume of a book is stored.
+     */
+    static String volumeName(String base, int volume) {
+        return volume == 1 ? base : base + "#" + volume;
+    }
+
+    /**
+     * The name of the book a manual or volume was compiled from.
+     */
+    static String baseName(String name) {
+        int index = name.indexOf('#');
+        return index < 0 ? name : name.substring(0, index);
+    }
+
+    /**
+     * The name of a manual or volume without its locale, so
+     * "rules@de_de#2" becomes "rules#2".
+     */
+    static String defaultName(String name) {
+        int at = name.indexOf('@');
+        if (at < 0) return name;
+        int index = name.indexOf('#', at);
+        return name.substring(0, at) + (index < 0 ? "" : name.substring(index));
+    }
+
+    /**
+     * Choose the locale variant of a manual or volume. A book named
+     * "rules@de_de" is the variant of "rules" for the locale de_de,
+     * and "rules@de" for all German locales. Without a matching
+     * variant, or if the name already names a variant, the name is
+     * returned as it is.
+     */
+    String variantName(String name, String locale) {
+        if (locale == null || variants.isEmpty() || name.indexOf('@') >= 0) return name;
+        int index = name.indexOf('#');
+        String base = index < 0 ? name : name.substring(0, index);
+        String volume = index < 0 ? "" : name.substring(index);
+        locale = locale.toLowerCase(Locale.ROOT);
+        if (variants.contains(base + "@" + locale)) return base + "@" + locale + volume;
+        int underscore = locale.indexOf('_');
+        if (underscore > 0 && variants.contains(base + "@" + locale.substring(0, underscore))) {
+            return base + "@" + locale.substring(0, underscore) + volume;
         }
+        return name;
     }
 
-    ItemStack spawnBook(String name) {
-        Manual manual = getManual(name);
-        if (manual == null) return null;
-        return manual.getItem().clone();
+    String variantName(String name, Player player) {
+        return variantName(name, player.getLocale());
     }
 
-    Manual createManual(String name) {
-        File file = new File(new File(getDataFolder(), "books"), name + ".json");
-        if (!file.isFile() || !file.canRead()) return null;
-        String dump;
-        try {
-            dump = new String(Files.readAllBytes(file.toPath()));
-        } catch (IOException ioe) {
-            ioe.printStackTrace();
-            return null;
+    private void updateVariants(Collection<String> names) {
+        variants.retainAll(names);
+        for (String name: names) {
+            if (name.indexOf('@') >= 0) variants.add(name);
         }
-        return parseManual(dump, name, getServer().getConsoleSender());
     }
 
-    private Manual parseManual(String json, String name, CommandSender sender) {
-        final Map<String, Object> map;
-        JSONParser parser = new JSONParser();
-        try {
-            final Map<String, Object> tmp = (Map<String, Object>)parser.parse(json);
-            map = tmp;
-        } catch (ParseException pe) {
-            int pos = pe.getPosition();
-            String before = json.substring(0, pos);
-            int linum = 0;
-            int chnum = 0;
-            for (int i = 0; i < before.length(); i += 1) {
-                char c = before.charAt(i);
-                if (c == '\n') {
-                    linum += 1;
-                    chnum = 0;
+    /**
+     * Load a manual and its variants for the given players, each
+     * only once. The future is completed on the main thread.
+     * @return the loaded manuals by name, without missing ones
+     */
+    CompletableFuture<Map<String, Manual>> loadVariants(String name, Collection<Player> players) {
+        Set<String> names = new LinkedHashSet<>();
+        names.add(name);
+        for (Player player: players) names.add(variantName(name, player));
+        final Map<String, CompletableFuture<Manual>> futures = new LinkedHashMap<>();
+        for (String it: names) futures.put(it, loadManual(it));
+        return CompletableFuture.allOf(futures.values().toArray(new CompletableFuture[0])).thenApply(v -> {
+                Map<String, Manual> result = new HashMap<>();
+                for (Map.Entry<String, CompletableFuture<Manual>> entry: futures.entrySet()) {
+                    Manual manual = entry.getValue().join();
+                    if (manual != null) result.put(entry.getKey(), manual);
+                }
+                return result;
+            });
+    }
+
+    @EventHandler
+    public void onCustomRegister(CustomRegisterEvent event) {
+        manualItem = new ManualItem(this);
+        event.addItem(manualItem);
+    }
+
+    /**
+     * Fill in the placeholders of a manual right before it is
+     * opened. Writing to the item in place makes sure the book that
+     * opens is the filled one. A manual which follows the language of
+     * its reader but is in another one is replaced by a copy of the
+     * right variant instead.
+     */
+    @EventHandler(priority = EventPriority.LOW)
+    public void onPlayerInteract(PlayerInteractEvent event) {
+        if (event.getAction() != Action.RIGHT_CLICK_AIR && event.getAction() != Action.RIGHT_CLICK_BLOCK) return;
+        ItemStack item = event.getItem();
+        if (item == null || item.getType() != Material.WRITTEN_BOOK) return;
+        if (!ManualItem.CUSTOM_ID.equals(CustomPlugin.getInstance().getItemManager().getCustomId(item))) return;
+        String name = ManualItem.getName(item);
+        if (name == null) return;
+        String variant = variantName(defaultName(name), event.getPlayer());
+        if (!variant.equals(name) && ManualItem.followsLocale(item)) {
+            // Switch to the player's language if it is loaded, or
+            // start loading it for the next time.
+            Manual manual = getManual(variant);
+            if (manual != null) {
+                ItemStack newItem = replaceItem(item, manual, event.getPlayer());
+                if (event.getHand() == EquipmentSlot.OFF_HAND) {
+                    event.getPlayer().getInventory().setItemInOffHand(newItem);
                 } else {
-                    chnum += 1;
+                    event.getPlayer().getInventory().setItemInMainHand(newItem);
                 }
+                return;
             }
-            String msg = json.substring(Math.max(0, pos - 12), pos) + ChatColor.YELLOW + json.substring(pos, pos + 1) + ChatColor.RESET + json.substring(Math.min(json.length(), pos + 1), Math.min(json.length(), pos + 12));
-            sender.sendMessage("JSON error at line " + (linum + 1) + " char " + (chnum + 1) + ": " + msg.replace("\n", "\\n"));
-            return null;
-        } catch (ClassCastException cce) {
-            sender.sendMessage("JSON Dictionary expected");
+        }
+        Manual manual = manuals.get(name);
+        if (manual == null || manual.getPageTemplates().isEmpty()) return;
+        ManualItem.fillPlaceholders(item, manual, event.getPlayer(), this);
+    }
+
+    /**
+     * Swap the manuals in the inventory of a player who changed
+     * their language for the matching variants.
+     */
+    @EventHandler
+    public void onPlayerLocaleChange(PlayerLocaleChangeEvent event) {
+        if (variants.isEmpty()) return;
+        final Player player = event.getPlayer();
+        Inventory inventory = player.getInventory();
+        for (int i = 0; i < inventory.getSize(); i += 1) {
+            ItemStack item = inventory.getItem(i);
+            if (item == null || item.getType() != Material.WRITTEN_BOOK) continue;
+            if (!ManualItem.CUSTOM_ID.equals(CustomPlugin.getInstance().getItemManager().getCustomId(item))) continue;
+            final String name = ManualItem.getName(item);
+            if (name == null || !ManualItem.followsLocale(item)) continue;
+            String variant = variantName(defaultName(name), event.getLocale());
+            if (variant.equals(name)) continue;
+            final int slot = i;
+            loadManual(variant).thenAccept(manual -> {
+                    if (manual == null || !player.isOnline()) return;
+                    ItemStack current = player.getInventory().getItem(slot);
+                    if (current == null || !ManualItem.CUSTOM_ID.equals(CustomPlugin.getInstance().getItemManager().getCustomId(current))
+                        || !name.equals(ManualItem.getName(current))) return;
+                    player.getInventory().setItem(slot, replaceItem(current, manual, player));
+                });
+        }
+    }
+
+    /**
+     * Make a placeholder available to manuals, as {placeholder|name}
+     * or {placeholder|name|argument}. The provider gets the player
+     * and the argument, which may be null, and is called on the main
+     * thread.
+     */
+    public void registerPlaceholder(String name, BiFunction<Player, String, String> provider) {
+        placeholders.put(name.toLowerCase(), provider);
+    }
+
+    /**
+     * Write a manual item for its owner, with the placeholders
+     * filled in. Main thread only.
+     * @param player the owner, or null to leave the placeholders
+     * empty until the manual is opened
+     */
+    ItemStack createItem(Manual manual, int amount, Player player) {
+        ItemStack item = ManualItem.createItem(manual, amount, versions.getStamp(manual.getName()));
+        ManualItem.fillPlaceholders(item, manual, player, this);
+        return item;
+    }
+
+    /**
+     * Write a manual item in place of an old one, keeping its amount
+     * and whether it follows the language of its reader.
+     */
+    ItemStack replaceItem(ItemStack old, Manual manual, Player player) {
+        ItemStack item = createItem(manual, old.getAmount(), player);
+        if (ManualItem.followsLocale(old)) ManualItem.setFollowsLocale(item);
+        return item;
+    }
+
+    String resolvePlaceholder(Player player, String key) {
+        if (player == null) return "";
+        int index = key.indexOf('|');
+        String name = index < 0 ? key : key.substring(0, index);
+        String arg = index < 0 ? null : key.substring(index + 1);
+        BiFunction<Player, String, String> provider = placeholders.get(name.toLowerCase());
+        if (provider == null) return "";
+        try {
+            return provider.apply(player, arg);
+        } catch (RuntimeException re) {
+            getLogger().log(Level.WARNING, "Placeholder " + key + " failed", re);
+            return "";
+        }
+    }
+
+    /**
+     * Get a loaded manual without blocking. If the manual has not
+     * been loaded yet, start loading it in the background and
+     * return null for now.
+     */
+    Manual getManual(String name) {
+        ManualCache.Entry entry = manuals.getEntry(name);
+        stats.recordLookup(baseName(name), entry != null && entry.getManual() != null);
+        if (entry != null) {
+            return entry.getManual(); // May yield null
+        } else {
+            loadManual(name);
             return null;
         }
-        return createManual(new YamlConfiguration().createSection("tmp", map), name);
     }
 
-    Manual createManual(ConfigurationSection config, String name) {
-        List<List<Object>> pages = new ArrayList<>();
-        Map<String, Integer> anchors = new HashMap<>();
-        Map<String, Integer> chapters = new LinkedHashMap<>();
-        List<Map<String, Object>> references = new ArrayList<>();
-        @SuppressWarnings("unchecked")
-        List<Object> pageList = (List<Object>)config.getList("pages");
-        if (pageList == null || pageList.isEmpty()) return null;
-        List<Object> page = new ArrayList<>();
-        page.add("");
-        for (Object o: pageList) {
-            if (o instanceof Map) {
-                @SuppressWarnings("unchecked")
-                final ConfigurationSection section = config.createSection("tmp", (Map<?, ?>)o);
-                Map<String, Object> map = new HashMap<>();
-                if (section.isSet("chapter")) {
-                    String chapterName = section.getString("chapter");
-                    chapters.put(chapterName, pages.size());
-                    anchors.put(chapterName, pages.size());
-                }
-                if (section.isSet("anchor")) {
-                    anchors.put(section.getString("anchor"), pages.size());
-                }
-                if (section.isSet("text")) {
-                    map.put("text", format(section.getString("text")));
-                }
-                final String[] ims = {"color", "strikethrough", "underlined", "bold", "italic", "obfuscated", "insertion"};
-                for (String key: ims) {
-                    if (section.isSet(key)) {
-                        map.put(key, section.get(key));
-                    }
-                }
-                if (section.isSet("tooltip")) {
-                    Map<String, Object> tooltip = new HashMap<>();
-                    tooltip.put("action", "show_text");
-                    tooltip.put("value", format(section.getString("tooltip")));
-                    map.put("hoverEvent", tooltip);
-                }
-                if (section.isSet("command")) {
-                    Map<String, Object> command = new HashMap<>();
-                    command.put("action", "run_command");
-                    command.put("value", section.getString("command"));
-                    map.put("clickEvent", command);
-                }
-                if (section.isSet("url")) {
-                    Map<String, Object> url = new HashMap<>();
-                    url.put("action", "open_url");
-                    url.put("value", section.getString("url"));
-                    map.put("clickEvent", url);
-                }
-                if (section.isSet("page")) {
-                    Map<String, Object> pageLink = new HashMap<>();
-                    pageLink.put("action", "change_page");
-                    pageLink.put("value", section.getInt("page"));
-                    map.put("clickEvent", pageLink);
-                }
-                if (section.isSet("reference")) {
-                    Map<String, Object> reference = new HashMap<>();
-                    reference.put("action", "change_page");
-                    reference.put("value", section.getString("reference"));
-                    map.put("clickEvent", reference);
-                    references.add(reference);
-                }
-                if (!map.isEmpty()) page.add(map);
-            } else if (o instanceof String) {
-                String par = (String)o;
+    /**
+     * Read and compile a manual asynchronously. The returned future
+     * is completed on the main thread, after the result (possibly
+     * null) has been stored in the manuals map. May be called from
+     * any thread. Concurrent calls for any volume of the same book
+     * share one compilation.
+     */
+    CompletableFuture<Manual> loadManual(final String name) {
+        ManualCache.Entry entry = manuals.peek(name);
+        if (entry != null) return CompletableFuture.completedFuture(entry.getManual());
+        final String base = baseName(name);
+        return pending.load(base, future -> startCompile(base, future)).thenApply(loaded -> pick(loaded, name));
+    }
+
+    /**
+     * Compile a manual again, even if it is already loaded. The old
+     * version stays in place until the new one is ready. If the
+     * contents changed without the Version number being raised, the
+     * version is bumped so that outdated items get updated.
+     */
+    CompletableFuture<Manual> reloadManual(final String name) {
+        final String base = baseName(name);
+        return pending.reload(base, future -> startCompile(base, future)).thenApply(loaded -> pick(loaded, name));
+    }
+
+    /**
+     * Get a manual from the result of a compile. A volume which the
+     * book does not have is remembered as missing, unless a newer
+     * compile installed it.
+     */
+    private Manual pick(Map<String, Manual> loaded, String name) {
+        if (loaded.containsKey(name)) return loaded.get(name);
+        if (!manuals.containsKey(name)) manuals.put(name, null);
+        return manuals.get(name);
+    }
+
+    /**
+     * Compile a book, then install all of its volumes and complete
+     * the future with them.
+     */
+    private void startCompile(final String base, final CompletableFuture<Map<String, Manual>> result) {
+        final int generation = loadGeneration;
+        compileAsync(base).thenAccept(volumes -> {
+                if (!isEnabled()) return;
+                getServer().getScheduler().runTask(this, () -> {
+                        Map<String, Manual> loaded = new HashMap<>();
+                        addVolumes(loaded, volumes);
+                        if (!loaded.containsKey(base)) loaded.put(base, null);
+                        installManuals(loaded, generation, Collections.singletonMap(base, result));
+                    });
+            });
+    }
+
+    /**
+     * Put the volumes of a book into a map, with their version
+     * bumped if their contents changed. Main thread only.
+     */
+    private void addVolumes(Map<String, Manual> loaded, List<Manual> volumes) {
+        if (volumes == null) return;
+        for (Manual manual: volumes) {
+            loaded.put(manual.getName(), withVersion(manuals.get(manual.getName()), manual, versions.nextVersion(manual)));
+        }
+    }
+
+    /**
+     * Give a compiled manual the version from the version table.
+     * The loaded manual is kept if nothing changed, so its item need
+     * not be built again.
+     */
+    static Manual withVersion(Manual old, Manual manual, int version) {
+        if (old != null && old.getVersion() == version && old.getItemTag().equals(manual.getItemTag())) return old;
+        if (manual.getVersion() == version) return manual;
+        return new Manual(manual.getName(), version, manual.getItemTag(), null,
+                          manual.getVolume(), manual.getVolumes(), manual.getPageTemplates());
+    }
+
+    /**
+     * Compile a manual on the worker pool. The future is completed
+     * off the main thread and never exceptionally; failures yield
+     * null.
+     */
+    private CompletableFuture<List<Manual>> compileAsync(final String name) {
+        return CompletableFuture.supplyAsync(() -> {
                 try {
-                    Pattern pattern = Pattern.compile("\\{[^}]+\\}");
-                    Matcher matcher = pattern.matcher(par);
-                    int prevEnd = 0;
-                    while (matcher.find()) {
-                        String group = matcher.group();
-                        group = group.substring(1, group.length() - 1);
-                        String[] toks = group.split("\\|");
-                        Map<String, Object> tag = new HashMap<>();
-                        switch (toks[0].toLowerCase()) {
-                        case "command":
-                            if (toks.length >= 3 && toks.length <= 4) {
-                                tag.put("text", format(toks[1]) + ChatColor.RESET);
-                                Map<String, Object> event = new HashMap<>();
-                                event.put("action", "run_command");
-                                event.put("value", toks[2]);
-                                tag.put("clickEvent", event);
-                            }
-                            if (toks.length >= 4) {
-                                Map<String, Object> event = new HashMap<>();
-                                event.put("action", "show_text");
-                                event.put("value", format(toks[3]));
-                                tag.put("hoverEvent", event);
-                            }
-                            break;
-                        case "url":
-                            if (toks.length >= 3 && toks.length <= 4) {
-                                tag.put("text", format(toks[1]) + ChatColor.RESET);
-                                Map<String, Object> event = new HashMap<>();
-                                event.put("action", "open_url");
-                                event.put("value", toks[2]);
-                                tag.put("clickEvent", event);
-                            }
-                            if (toks.length >= 4) {
-                                Map<String, Object> event = new HashMap<>();
-                                event.put("action", "show_text");
-                                event.put("value", format(toks[3]));
-                                tag.put("hoverEvent", event);
-                            }
-                            break;
-                        case "tooltip":
-                            if (toks.length == 3) {
-                                tag.put("text", format(toks[1]) + ChatColor.RESET);
-                                Map<String, Object> event = new HashMap<>();
-                                event.put("action", "show_text");
-                                event.put("value", format(toks[2]));
-                                tag.put("hoverEvent", event);
-                            }
-                            break;
-                        case "page":
-                            if (toks.length >= 3 && toks.length <= 4) {
-                                tag.put("text", format(toks[1]) + ChatColor.RESET);
-                                Map<String, Object> event = new HashMap<>();
-                                event.put("action", "change_page");
-                                try {
-                                    event.put("value", Integer.parseInt(toks[2]));
-                                } catch (NumberFormatException nfe) { }
-                                tag.put("clickEvent", event);
-                            }
-                            if (toks.length >= 4) {
-                                Map<String, Object> event = new HashMap<>();
-                                event.put("action", "show_text");
-                                event.put("value", format(toks[3]));
-                                tag.put("hoverEvent", event);
-                            }
-                        case "chapter":
-                            if (toks.length == 2) {
-                                chapters.put(toks[1], pages.size());
-                                anchors.put(toks[1], pages.size());
-                            }
-                        case "anchor":
-                            if (toks.length == 2) {
-                                anchors.put(toks[1], pages.size());
-                            }
-                            break;
-                        default:
-                            getLogger().info("Unknown tag: " + toks[0]);
-                        }
-                        page.add(format(par.substring(prevEnd, matcher.start())));
-                        prevEnd = matcher.end();
-                        if (!tag.isEmpty()) page.add(tag);
-                    }
-                    page.add(format(par.substring(prevEnd, par.length())));
-                    pages.add(page);
-                    page = new ArrayList<>();
-                    page.add("");
+                    return createManual(name);
                 } catch (RuntimeException re) {
                     re.printStackTrace();
                     return null;
                 }
+            }, workers);
+    }
+
+    File getBooksFolder() {
+        return new File(getDataFolder(), "books");
+    }
+
+    File getFragmentsFolder() {
+        return new File(getDataFolder(), "fragments");
+    }
+
+    /**
+     * Map each book name to a stamp made from modification time and
+     * file size.
+     */
+    static Map<String, Long> scanBooks(File folder) {
+        Map<String, Long> result = new HashMap<>();
+        File[] files = folder.listFiles((dir, fn) -> fn.endsWith(".json"));
+        if (files == null) return result;
+        for (File file: files) {
+            String fn = file.getName();
+            result.put(fn.substring(0, fn.length() - 5), file.lastModified() * 31L + file.length());
+        }
+        return result;
+    }
+
+    /**
+     * Scan the books and fragments folders off the main thread, then
+     * recompile the manuals whose files or included fragments changed
+     * and drop the ones whose files were removed. Manuals which were
+     * never loaded are left to be loaded lazily, unless preloading is
+     * enabled.
+     */
+    void checkBooks(final CommandSender sender) {
+        if (scanningBooks) {
+            if (sender != null) sender.sendMessage("Manual scan already in progress.");
+            return;
+        }
+        scanningBooks = true;
+        final CompletableFuture<Map<String, Long>> bookScan = CompletableFuture.supplyAsync(() -> scanBooks(getBooksFolder()), workers);
+        final CompletableFuture<Map<String, Long>> fragmentScan = CompletableFuture.supplyAsync(() -> scanBooks(getFragmentsFolder()), workers);
+        CompletableFuture.allOf(bookScan, fragmentScan).whenComplete((v, throwable) -> {
+                if (!isEnabled()) return;
+                getServer().getScheduler().runTask(this, () -> {
+                        scanningBooks = false;
+                        if (throwable != null) {
+                            getLogger().log(Level.WARNING, "Scanning books failed", throwable);
+                            if (sender != null) sender.sendMessage("Scanning books failed. See console.");
+                            return;
+                        }
+                        Set<String> fragmentNames = applyFragmentChanges(fragmentScan.join());
+                        applyBookChanges(bookScan.join(), fragmentNames, sender);
+                    });
+            });
+    }
+
+    /**
+     * Forget changed or removed fragments.
+     * @return the names of the fragments which changed
+     */
+    private Set<String> applyFragmentChanges(Map<String, Long> stamps) {
+        Set<String> result = new HashSet<>();
+        for (String name: fragmentStamps.keySet()) {
+            if (!stamps.containsKey(name)) result.add(name);
+        }
+        for (Map.Entry<String, Long> entry: stamps.entrySet()) {
+            if (!entry.getValue().equals(fragmentStamps.get(entry.getKey()))) result.add(entry.getKey());
+        }
+        fragmentStamps.clear();
+        fragmentStamps.putAll(stamps);
+        for (String name: result) fragments.invalidate(name);
+        return result;
+    }
+
+    private void applyBookChanges(Map<String, Long> stamps, Set<String> fragmentNames, CommandSender sender) {
+        final long start = System.nanoTime();
+        updateVariants(stamps.keySet());
+        int changed = 0;
+        int removed = 0;
+        List<CompletableFuture<Manual>> reloads = new ArrayList<>();
+        for (String name: new ArrayList<>(bookStamps.keySet())) {
+            if (stamps.containsKey(name)) continue;
+            if (pending.isPending(name)) continue; // Retry next time
+            bookStamps.remove(name);
+            bookIncludes.remove(name);
+            pageCaches.remove(name);
+            stats.remove(name);
+            Manual old = manuals.get(name);
+            if (old != null) {
+                removeVolumes(name, 1, old.getVolumes());
+                removed += 1;
+            }
+        }
+        final boolean preload = getConfig().getBoolean("Preload", true);
+        for (Map.Entry<String, Long> entry: stamps.entrySet()) {
+            String name = entry.getKey();
+            if (entry.getValue().equals(bookStamps.get(name))) {
+                // Only books which include a changed fragment
+                Set<String> includes = bookIncludes.get(name);
+                if (includes == null || Collections.disjoint(includes, fragmentNames)) continue;
+            } else {
+                if (pending.isPending(name)) continue; // Retry next time
+                bookStamps.put(name, entry.getValue());
             }
+            // Variants are only compiled on demand.
+            if ((!preload || name.indexOf('@') >= 0) && !manuals.containsKey(name)) continue;
+            reloads.add(reloadManual(name));
+            changed += 1;
+        }
+        if (!reloads.isEmpty()) {
+            final int count = reloads.size();
+            CompletableFuture.allOf(reloads.toArray(new CompletableFuture[0])).thenRun(() -> {
+                    stats.recordReload(System.nanoTime() - start, count);
+                    if (getConfig().getBoolean("RefreshAfterReload", true)) {
+                        startRefresh(null, getConfig().getBoolean("RefreshContainers", false));
+                    }
+                });
+        }
+        String msg = "Manuals reloaded: " + changed + " changed, " + removed + " removed, "
+            + fragmentNames.size() + " fragments changed.";
+        if (sender != null) {
+            sender.sendMessage(msg);
+        } else if (changed > 0 || removed > 0 || !fragmentNames.isEmpty()) {
+            getLogger().info(msg);
+        }
+    }
+
+    /**
+     * Compile every book in the books folder in parallel and install
+     * all of them in one go once the last one is done. Locale
+     * variants are left until a player needs them.
+     */
+    void preloadManuals() {
+        File[] files = getBooksFolder().listFiles((dir, fn) -> fn.endsWith(".json"));
+        if (files == null || files.length == 0) return;
+        final int generation = loadGeneration;
+        final long start = System.nanoTime();
+        final Map<String, CompletableFuture<Map<String, Manual>>> results = new LinkedHashMap<>();
+        final Map<String, CompletableFuture<List<Manual>>> compiled = new LinkedHashMap<>();
+        for (File file: files) {
+            final String name = file.getName().substring(0, file.getName().length() - 5);
+            if (name.indexOf('@') >= 0) continue; // Locale variant
+            if (manuals.containsKey(name)) continue;
+            CompletableFuture<Map<String, Manual>> result = new CompletableFuture<>();
+            if (!pending.begin(name, result)) continue;
+            results.put(name, result);
+            compiled.put(name, CompletableFuture.supplyAsync(() -> {
+                        long bookStart = System.nanoTime();
+                        List<Manual> volumes;
+                        try {
+                            volumes = createManual(name);
+                        } catch (RuntimeException re) {
+                            getLogger().log(Level.WARNING, "Preload: " + name + " failed", re);
+                            return null;
+                        }
+                        long ms = (System.nanoTime() - bookStart) / 1000000L;
+                        if (volumes == null) {
+                            getLogger().warning("Preload: " + name + " failed after " + ms + "ms");
+                        } else {
+                            getLogger().info("Preload: " + name + " compiled in " + ms + "ms");
+                        }
+                        return volumes;
+                    }, workers));
+        }
+        CompletableFuture.allOf(compiled.values().toArray(new CompletableFuture[0])).thenRun(() -> {
+                if (!isEnabled()) return;
+                getServer().getScheduler().runTask(this, () -> {
+                        int failures = 0;
+                        Map<String, Manual> loaded = new HashMap<>();
+                        for (Map.Entry<String, CompletableFuture<List<Manual>>> entry: compiled.entrySet()) {
+                            List<Manual> volumes = entry.getValue().join();
+                            if (volumes == null) failures += 1;
+                            loaded.put(entry.getKey(), null);
+                            addVolumes(loaded, volumes);
+                        }
+                        installManuals(loaded, generation, results);
+                        stats.recordReload(System.nanoTime() - start, compiled.size());
+                        long ms = (System.nanoTime() - start) / 1000000L;
+                        getLogger().info("Preloaded " + (compiled.size() - failures) + " manuals in " + ms + "ms, " + failures + " failed.");
+                    });
+            });
+    }
+
+    private void removeVolumes(String base, int from, int to) {
+        for (int i = from; i <= to; i += 1) manuals.remove(volumeName(base, i));
+    }
+
+    /**
+     * Publish compiled manuals (null for missing ones) in a single
+     * change of the manuals map, then complete the futures of their
+     * books. A book whose load was replaced by a reload in the
+     * meantime is not installed, so that an older compile finishing
+     * late cannot overwrite a newer one; its future is completed
+     * with the result of the newer load instead. Main thread only.
+     */
+    private void installManuals(Map<String, Manual> loaded, int generation, Map<String, CompletableFuture<Map<String, Manual>>> futures) {
+        Map<String, Manual> install = new HashMap<>(loaded);
+        for (Map.Entry<String, CompletableFuture<Map<String, Manual>>> entry: futures.entrySet()) {
+            if (pending.isCurrent(entry.getKey(), entry.getValue())) continue;
+            install.keySet().removeIf(name -> baseName(name).equals(entry.getKey()));
         }
-        boolean tableOfContents = config.getBoolean("TableOfContents");
-        if (tableOfContents) {
-            page = new ArrayList<>();
-            page.add(format("&lTable of Contents&r\n"));
-            int entries = 0;
-            int chapterNo = 0;
-            for (String chapter: chapters.keySet()) {
-                chapterNo += 1;
-                Integer pageNo = chapters.get(chapter);
-                pageNo += 2;
-                Map<String, Object> tocEntry = new HashMap<>();
-                tocEntry.put("text", chapterNo + ". " + ChatColor.BLUE + chapter);
-                Map<String, Object> clickEvent = new HashMap<>();
-                tocEntry.put("clickEvent", clickEvent);
-                clickEvent.put("action", "change_page");
-                clickEvent.put("value", pageNo);
-                Map<String, Object> hoverEvent = new HashMap<>();
-                tocEntry.put("hoverEvent", hoverEvent);
-                hoverEvent.put("action", "show_text");
-                hoverEvent.put("value", "Jump to page " + pageNo);
-                page.add("\n");
-                page.add(tocEntry);
-                entries += 1;
+        // Do not resurrect a manual compiled before the plugin was disabled.
+        if (generation == loadGeneration && !install.isEmpty()) {
+            // Drop volumes a book no longer has.
+            for (Manual manual: install.values()) {
+                if (manual == null || manual.getVolume() != 1) continue;
+                Manual old = manuals.get(manual.getName());
+                if (old != null) removeVolumes(manual.getName(), manual.getVolumes() + 1, old.getVolumes());
             }
-            pages.add(0, page);
-        }
-        for (Map<String, Object> reference: references) {
-            String refname = (String)reference.get("value");
-            Integer pageNo = anchors.get(refname);
-            if (pageNo == null) {
-                getLogger().warning("Reference not found in manual " + name + ": " + refname);
-                pageNo = 0;
+            manuals.putAll(install);
+            boolean changed = false;
+            for (Manual manual: install.values()) {
+                if (manual != null && versions.update(manual)) changed = true;
             }
-            if (tableOfContents) {
-                reference.put("value", pageNo + 2);
+            if (changed) versions.save();
+        }
+        for (Map.Entry<String, CompletableFuture<Map<String, Manual>>> entry: futures.entrySet()) {
+            final String base = entry.getKey();
+            final CompletableFuture<Map<String, Manual>> future = entry.getValue();
+            if (generation != loadGeneration || pending.isCurrent(base, future)) {
+                pending.complete(base, future, loaded);
+                continue;
+            }
+            CompletableFuture<Map<String, Manual>> newer = pending.get(base);
+            if (newer != null) {
+                newer.thenAccept(future::complete);
             } else {
-                reference.put("value", pageNo + 1);
+                // The newer load is already installed.
+                Map<String, Manual> current = new HashMap<>();
+                for (String name: loaded.keySet()) {
+                    if (baseName(name).equals(base)) current.put(name, manuals.get(name));
+                }
+                future.complete(current);
+            }
+        }
+    }
+
+    /**
+     * Find the players for /manual give: a player name, "*" for
+     * everyone online, perm:<node>, world:<name> or an entity
+     * selector such as @a[distance=..10].
+     * @return the players, or null if the target is invalid
+     */
+    private List<Player> findTargets(CommandSender sender, String spec) {
+        List<Player> result = new ArrayList<>();
+        if (spec.equals("*")) {
+            result.addAll(getServer().getOnlinePlayers());
+        } else if (spec.startsWith("perm:")) {
+            String node = spec.substring(5);
+            for (Player online: getServer().getOnlinePlayers()) {
+                if (online.hasPermission(node)) result.add(online);
+            }
+        } else if (spec.startsWith("world:")) {
+            World world = getServer().getWorld(spec.substring(6));
+            if (world == null) {
+                sender.sendMessage("World not found: " + spec.substring(6));
+                return null;
+            }
+            result.addAll(world.getPlayers());
+        } else if (spec.startsWith("@")) {
+            try {
+                for (Entity entity: getServer().selectEntities(sender, spec)) {
+                    if (entity instanceof Player) result.add((Player)entity);
+                }
+            } catch (IllegalArgumentException iae) {
+                sender.sendMessage("Invalid selector: " + spec);
+                return null;
+            }
+        } else {
+            Player target = getServer().getPlayerExact(spec);
+            if (target == null) {
+                sender.sendMessage("Player not found: " + spec);
+                return null;
+            }
+            result.add(target);
+        }
+        return result;
+    }
+
+    /**
+     * Start a refresh of manual items in loaded inventories, unless
+     * one is already running.
+     */
+    void startRefresh(CommandSender sender, boolean containers) {
+        if (manualItem == null) return;
+        if (refreshJob != null && !refreshJob.isDone()) {
+            if (sender != null) sender.sendMessage("Manual refresh already running.");
+            return;
+        }
+        long budget = Math.max(1L, getConfig().getLong("RefreshBudgetMicros", 2000L)) * 1000L;
+        refreshJob = new RefreshJob(this, manualItem, sender, budget, containers);
+        refreshJob.start();
+    }
+
+    private void sendStats(CommandSender sender) {
+        long source = 0L;
+        long tag = 0L;
+        long total = 0L;
+        Map<String, ManualStats.Book> books = stats.getBooks();
+        sender.sendMessage("Manual stats (source, NBT, pages, compile time, hits/misses, item updates/rewrites):");
+        for (Map.Entry<String, ManualStats.Book> entry: books.entrySet()) {
+            ManualStats.Book book = entry.getValue();
+            source += book.getSourceBytes();
+            tag += book.getTagBytes();
+            total += book.getTotalNanos();
+            sender.sendMessage("- " + entry.getKey()
+                               + ": " + (book.getSourceBytes() / 1024L) + " KiB"
+                               + ", " + (book.getTagBytes() / 1024L) + " KiB"
+                               + ", " + book.getPages() + " pages"
+                               + ", " + ManualStats.millis(book.getTotalNanos()) + (book.isFromCache() ? " (cached)" : "")
+                               + ", " + book.getHits() + "/" + book.getMisses()
+                               + ", " + book.getUpdates() + "/" + book.getRewrites());
+        }
+        sender.sendMessage("Total: " + books.size() + " manuals, " + (source / 1024L) + " KiB source, "
+                           + (tag / 1024L) + " KiB NBT, " + ManualStats.millis(total) + " compiling");
+        if (stats.getLastReloadNanos() >= 0L) {
+            sender.sendMessage("Last reload: " + stats.getLastReloadCount() + " manuals in "
+                               + ManualStats.millis(stats.getLastReloadNanos()));
+        }
+    }
+
+    private void sendStats(CommandSender sender, String name) {
+        ManualStats.Book book = stats.get(name);
+        if (book == null) {
+            sender.sendMessage("No stats for manual: " + name);
+            return;
+        }
+        sender.sendMessage("Manual " + name + ": " + book.getPages() + " pages, "
+                           + book.getSourceBytes() + " bytes source, " + book.getTagBytes() + " bytes NBT");
+        if (book.isFromCache()) {
+            sender.sendMessage("Loaded from compile cache in " + ManualStats.millis(book.getTotalNanos()));
+        } else {
+            sender.sendMessage("Compiled in " + ManualStats.millis(book.getTotalNanos())
+                               + ": expand " + ManualStats.millis(book.getExpandNanos())
+                               + ", resolve " + ManualStats.millis(book.getResolveNanos())
+                               + ", serialize " + ManualStats.millis(book.getSerializeNanos())
+                               + ", templates " + ManualStats.millis(book.getTemplateNanos()));
+        }
+        sender.sendMessage("Lookups: " + book.getHits() + " hits, " + book.getMisses() + " misses"
+                           + ", item updates: " + book.getUpdates() + ", rewrites: " + book.getRewrites());
+    }
+
+    /**
+     * One line for the periodic stats log.
+     */
+    private String statsSummary() {
+        long source = 0L;
+        long tag = 0L;
+        long hits = 0L;
+        long misses = 0L;
+        long updates = 0L;
+        long rewrites = 0L;
+        Map<String, ManualStats.Book> books = stats.getBooks();
+        for (ManualStats.Book book: books.values()) {
+            source += book.getSourceBytes();
+            tag += book.getTagBytes();
+            hits += book.getHits();
+            misses += book.getMisses();
+            updates += book.getUpdates();
+            rewrites += book.getRewrites();
+        }
+        return "Stats: " + books.size() + " manuals, " + (source / 1024L) + " KiB source, "
+            + (tag / 1024L) + " KiB NBT, " + hits + " hits, " + misses + " misses, "
+            + updates + " item updates, " + rewrites + " rewrites, last reload "
+            + (stats.getLastReloadNanos() >= 0L ? ManualStats.millis(stats.getLastReloadNanos()) : "never");
+    }
+
+    /**
+     * Compile a book, or take it from the compile cache.
+     * @return all volumes of the book, or null if it cannot be
+     * compiled
+     */
+    List<Manual> createManual(String name) {
+        File file = new File(getBooksFolder(), name + ".json");
+        if (!file.isFile() || !file.canRead()) return null;
+        final long start = System.nanoTime();
+        // Hash and compile the same bytes, so that an edit while
+        // compiling cannot be cached under the hash of the old source.
+        byte[] source;
+        String hash = null;
+        try {
+            source = Files.readAllBytes(file.toPath());
+            if (useCompileCache) hash = CompileCache.hashSource(new ByteArrayInputStream(source));
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+            return null;
+        }
+        final long sourceBytes = source.length;
+        if (hash != null) {
+            List<Manual> cached = loadCachedManual(name, hash);
+            if (cached != null) {
+                stats.recordCached(name, sourceBytes, cached, System.nanoTime() - start);
+                return cached;
             }
         }
-        List<String> formattedPages = new ArrayList<>();
-        for (List<Object> oldPage: pages) {
-            if (oldPage.size() == 1) {
-                formattedPages.add(JSONValue.toJSONString(oldPage.get(0)));
+        ManualCompiler.Result result;
+        ManualCompiler compiler = newCompiler();
+        PageCache pageCache = incrementalCompile ? pageCaches.computeIfAbsent(name, n -> new PageCache()) : null;
+        compiler.setPageCache(pageCache);
+        try (Reader reader = new InputStreamReader(new ByteArrayInputStream(source), StandardCharsets.UTF_8)) {
+            if (pageCache == null) {
+                result = compiler.compile(reader, name);
             } else {
-                formattedPages.add(JSONValue.toJSONString(oldPage));
+                synchronized (pageCache) {
+                    result = compiler.compile(reader, name);
+                }
             }
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+            return null;
+        } catch (ManualCompiler.SyntaxException se) {
+            getServer().getConsoleSender().sendMessage(se.getMessage());
+            return null;
+        }
+        if (result == null) return null;
+        bookIncludes.put(name, new HashSet<>(result.getIncludes().keySet()));
+        long templateStart = System.nanoTime();
+        List<Manual> volumes = newManuals(result.getName(), result.getVersion(), result.getVolumes());
+        long end = System.nanoTime();
+        stats.recordCompile(name, sourceBytes, result, end - templateStart, end - start);
+        if (hash != null) compileCache.save(name, result, hash);
+        return volumes;
+    }
+
+    private ManualCompiler newCompiler() {
+        ManualCompiler compiler = new ManualCompiler(getLogger());
+        compiler.setFragments(fragments);
+        compiler.setVolumeMaxBytes(getVolumeMaxBytes());
+        return compiler;
+    }
+
+    private long getVolumeMaxBytes() {
+        long result = getConfig().getLong("VolumeMaxBytes", 0L);
+        return result > 0L ? result : Long.MAX_VALUE;
+    }
+
+    private List<Manual> loadCachedManual(String name, String hash) {
+        CompileCache.Entry entry = compileCache.load(name, hash, fragments);
+        if (entry == null) return null;
+        if (!entry.getIncludes().isEmpty()) {
+            for (Map<String, Object> tag: entry.getVolumes()) internPages(tag);
+        }
+        bookIncludes.put(name, new HashSet<>(entry.getIncludes().keySet()));
+        return newManuals(name, entry.getVersion(), entry.getVolumes());
+    }
+
+    /**
+     * Which pages came from fragments is not stored in the cache, so
+     * try to share all pages of a manual with includes.
+     */
+    private void internPages(Map<String, Object> itemTag) {
+        Object pages = itemTag.get("pages");
+        if (!(pages instanceof List)) return;
+        @SuppressWarnings("unchecked")
+        List<Object> list = (List<Object>)pages;
+        for (int i = 0; i < list.size(); i += 1) {
+            if (list.get(i) instanceof String) list.set(i, fragments.intern((String)list.get(i)));
+        }
+    }
+
+    /**
+     * Download and compile a manual off the main thread, then give
+     * it to the player.
+     */
+    void fetchManual(final URL url, final Player player) {
+        player.sendMessage("Fetching manual from " + url + "...");
+        final UrlFetcher fetcher = urlFetcher;
+        CompletableFuture.supplyAsync(() -> {
+                try (Reader reader = new InputStreamReader(fetcher.open(url), StandardCharsets.UTF_8)) {
+                    // Volume links only work for installed manuals, so
+                    // do not split.
+                    ManualCompiler compiler = newCompiler();
+                    compiler.setVolumeMaxBytes(Long.MAX_VALUE);
+                    return compiler.compile(reader, "url");
+                } catch (IOException ioe) {
+                    throw new CompletionException(ioe.getMessage(), ioe);
+                } catch (ManualCompiler.SyntaxException se) {
+                    throw new CompletionException(se.getMessage(), se);
+                }
+            }, urlWorkers).whenComplete((result, throwable) -> {
+                    if (!isEnabled()) return;
+                    getServer().getScheduler().runTask(this, () -> {
+                            if (!player.isOnline()) return;
+                            if (throwable != null) {
+                                Throwable cause = throwable.getCause() != null ? throwable.getCause() : throwable;
+                                player.sendMessage("Could not load manual from " + url + ": " + cause.getMessage());
+                                return;
+                            }
+                            if (result == null) {
+                                player.sendMessage("Manual from URL has no pages: " + url);
+                                return;
+                            }
+                            Manual manual = newManuals(result.getName(), result.getVersion(), result.getVolumes()).get(0);
+                            player.getInventory().addItem(createItem(manual, 1, player));
+                            player.sendMessage("Manual from URL given: " + url);
+                        });
+                });
+    }
+
+    static List<Manual> newManuals(String name, int version, List<Map<String, Object>> volumes) {
+        List<Manual> result = new ArrayList<>(volumes.size());
+        for (int i = 0; i < volumes.size(); i += 1) {
+            result.add(new Manual(volumeName(name, i + 1), version, volumes.get(i), null, i + 1, volumes.size(),
+                                  PageTemplate.parsePages(volumes.get(i))));
         }
-        Map<String, Object> itemTag = new HashMap<>();
-        itemTag.put("generation", config.getInt("generation", 0));
-        itemTag.put("author", format(config.getString("author", "author")));
-        itemTag.put("title", format(config.getString("title", "title")));
-        itemTag.put("pages", formattedPages);
-        itemTag.put("resolved", true);
-        int version = config.getInt("Version");
-        ItemStack item = new ItemStack(Material.WRITTEN_BOOK);
-        item = Dirty.applyMap(item, itemTag);
-        return new Manual(name, version, itemTag, item);
+        return result;
     }
 }
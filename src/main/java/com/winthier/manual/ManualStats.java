@@ -0,0 +1,174 @@
+package com.winthier.manual;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import lombok.Getter;
+
+/**
+ * Per manual numbers for /manual stats: sizes, how long each stage
+ * of the last compilation took, and how often the manual was looked
+ * up or written into an item. Compilation records from the worker
+ * threads, lookups from wherever getManual() is called, so every
+ * field is safe to touch from any thread.
+ */
+final class ManualStats {
+    // Lookups of names which were never compiled could come from
+    // anywhere, so do not let them grow the map without bound.
+    private static final int MAX_BOOKS = 1024;
+    private final Map<String, Book> books = new ConcurrentHashMap<>();
+    @Getter private volatile long lastReloadNanos = -1L;
+    @Getter private volatile int lastReloadCount = 0;
+
+    static final class Book {
+        @Getter private volatile long sourceBytes;
+        @Getter private volatile long tagBytes;
+        @Getter private volatile int pages;
+        @Getter private volatile boolean fromCache;
+        @Getter private volatile long expandNanos;
+        @Getter private volatile long resolveNanos;
+        @Getter private volatile long serializeNanos;
+        @Getter private volatile long templateNanos;
+        @Getter private volatile long totalNanos;
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+        private final LongAdder updates = new LongAdder();
+        private final LongAdder rewrites = new LongAdder();
+
+        long getHits() {
+            return hits.sum();
+        }
+
+        long getMisses() {
+            return misses.sum();
+        }
+
+        long getUpdates() {
+            return updates.sum();
+        }
+
+        long getRewrites() {
+            return rewrites.sum();
+        }
+    }
+
+    private Book book(String name) {
+        Book book = books.get(name);
+        if (book != null || books.size() >= MAX_BOOKS) return book;
+        return books.computeIfAbsent(name, n -> new Book());
+    }
+
+    void recordCompile(String name, long sourceBytes, ManualCompiler.Result result, long templateNanos, long totalNanos) {
+        Book book = books.computeIfAbsent(name, n -> new Book());
+        book.sourceBytes = sourceBytes;
+        book.tagBytes = measure(result.getVolumes());
+        book.pages = result.getPageCount();
+        book.fromCache = false;
+        book.expandNanos = result.getExpandNanos();
+        book.resolveNanos = result.getResolveNanos();
+        book.serializeNanos = result.getSerializeNanos();
+        book.templateNanos = templateNanos;
+        book.totalNanos = totalNanos;
+    }
+
+    /**
+     * A manual was taken from the compile cache. Only the total time
+     * is known.
+     */
+    void recordCached(String name, long sourceBytes, List<ManualPlugin.Manual> volumes, long totalNanos) {
+        Book book = books.computeIfAbsent(name, n -> new Book());
+        long tagBytes = 0L;
+        int pageCount = 0;
+        for (ManualPlugin.Manual manual: volumes) {
+            tagBytes += measure(manual.getItemTag());
+            Object pages = manual.getItemTag().get("pages");
+            if (pages instanceof List) pageCount += ((List<?>)pages).size();
+        }
+        book.sourceBytes = sourceBytes;
+        book.tagBytes = tagBytes;
+        book.pages = pageCount;
+        book.fromCache = true;
+        book.expandNanos = 0L;
+        book.resolveNanos = 0L;
+        book.serializeNanos = 0L;
+        book.templateNanos = 0L;
+        book.totalNanos = totalNanos;
+    }
+
+    void recordLookup(String name, boolean hit) {
+        Book book = book(name);
+        if (book == null) return;
+        if (hit) {
+            book.hits.increment();
+        } else {
+            book.misses.increment();
+        }
+    }
+
+    /**
+     * The updateItem() callback was called for an item of this
+     * manual, whatever it did with the item.
+     */
+    void recordUpdate(String name) {
+        Book book = book(name);
+        if (book != null) book.updates.increment();
+    }
+
+    /**
+     * An item of this manual was written anew.
+     */
+    void recordRewrite(String name) {
+        Book book = book(name);
+        if (book != null) book.rewrites.increment();
+    }
+
+    void recordReload(long nanos, int count) {
+        lastReloadNanos = nanos;
+        lastReloadCount = count;
+    }
+
+    void remove(String name) {
+        books.remove(name);
+    }
+
+    Book get(String name) {
+        return books.get(name);
+    }
+
+    /**
+     * A sorted copy of all entries.
+     */
+    Map<String, Book> getBooks() {
+        return new TreeMap<>(books);
+    }
+
+    /**
+     * Size of the item tag in bytes, counting the UTF-8 length of
+     * every string in it. This is close to what the tag takes up when
+     * it is written as NBT and sent to a client.
+     */
+    static long measure(Object o) {
+        if (o instanceof String) {
+            return ((String)o).getBytes(StandardCharsets.UTF_8).length;
+        } else if (o instanceof Map) {
+            long result = 0L;
+            for (Map.Entry<?, ?> entry: ((Map<?, ?>)o).entrySet()) {
+                result += entry.getKey().toString().length() + measure(entry.getValue());
+            }
+            return result;
+        } else if (o instanceof List) {
+            long result = 0L;
+            for (Object e: (List<?>)o) result += measure(e);
+            return result;
+        } else {
+            return 4L;
+        }
+    }
+
+    static String millis(long nanos) {
+        return String.format("%.1fms", (double)nanos / 1000000.0);
+    }
+}
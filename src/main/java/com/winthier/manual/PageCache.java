@@ -0,0 +1,136 @@
+package com.winthier.manual;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import lombok.Getter;
+import org.json.simple.JSONValue;
+
+/**
+ * What the compiler keeps of one book between compiles, so that an
+ * edit only expands and serializes the pages which changed.
+ *
+ * The page list of a book is cut into units, each ending with a
+ * text element. Expanded units are kept by the hash of their
+ * source, and serialized pages by the identity of the expanded page
+ * together with the values its links resolved to. Pages whose links
+ * point somewhere else after an edit elsewhere in the book are
+ * serialized again; all others are taken as they are. Warnings are
+ * only logged when a unit is expanded.
+ *
+ * Only one compile may use a PageCache at a time.
+ */
+final class PageCache {
+    private Map<String, ManualCompiler.Unit> units = new HashMap<>();
+    private Map<List<Object>, Map<List<Object>, String>> pages = new IdentityHashMap<>();
+    private Map<String, ManualCompiler.Unit> nextUnits = new HashMap<>();
+    private Map<List<Object>, Map<List<Object>, String>> nextPages = new IdentityHashMap<>();
+    // Counters of the last compile
+    @Getter private int expandedUnits;
+    @Getter private int reusedUnits;
+    @Getter private int serializedPages;
+    @Getter private int reusedPages;
+    private MessageDigest digest;
+
+    /**
+     * Start a compile. Everything which is not used again before
+     * end() is forgotten.
+     */
+    void begin() {
+        nextUnits = new HashMap<>();
+        nextPages = new IdentityHashMap<>();
+        expandedUnits = 0;
+        reusedUnits = 0;
+        serializedPages = 0;
+        reusedPages = 0;
+    }
+
+    /**
+     * Finish a successful compile.
+     */
+    void end() {
+        units = nextUnits;
+        pages = nextPages;
+    }
+
+    /**
+     * Get the unit expanded from elements with this hash, unless it
+     * includes a fragment which has changed since. A unit which
+     * occurs twice in a book is only reused once, because its links
+     * have to be resolved separately.
+     */
+    ManualCompiler.Unit getUnit(String hash, ManualCompiler.Fragments fragments) {
+        if (nextUnits.containsKey(hash)) return null;
+        ManualCompiler.Unit unit = units.get(hash);
+        if (unit == null || !unit.isCurrent(fragments)) return null;
+        nextUnits.put(hash, unit);
+        reusedUnits += 1;
+        return unit;
+    }
+
+    void putUnit(String hash, ManualCompiler.Unit unit) {
+        expandedUnits += 1;
+        nextUnits.putIfAbsent(hash, unit);
+    }
+
+    /**
+     * Get the JSON of a page whose links resolved to the values in
+     * the signature, or null if it has to be serialized.
+     */
+    String getPage(List<Object> page, List<Object> signature) {
+        Map<List<Object>, String> map = nextPages.get(page);
+        if (map == null) {
+            map = pages.get(page);
+            if (map == null) return null;
+            nextPages.put(page, map);
+        }
+        String json = map.get(signature);
+        if (json != null) reusedPages += 1;
+        return json;
+    }
+
+    /**
+     * Remember the JSON of a page. Each page keeps two versions,
+     * which covers the first and the final resolution of a book
+     * with volumes.
+     */
+    void putPage(List<Object> page, List<Object> signature, String json) {
+        serializedPages += 1;
+        Map<List<Object>, String> map = nextPages.get(page);
+        if (map == null) {
+            map = new HashMap<>();
+            nextPages.put(page, map);
+        } else if (map.size() >= 2) {
+            map.clear();
+        }
+        map.put(signature, json);
+    }
+
+    /**
+     * Hash the elements of a unit. Text elements, by far the most
+     * common, are hashed as they are.
+     */
+    String hash(List<Object> elements) {
+        if (digest == null) {
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException nsae) {
+                throw new IllegalStateException(nsae);
+            }
+        }
+        for (Object o: elements) {
+            boolean text = o instanceof String;
+            byte[] bytes = (text ? (String)o : JSONValue.toJSONString(o)).getBytes(StandardCharsets.UTF_8);
+            digest.update(text ? (byte)1 : (byte)2);
+            digest.update(ByteBuffer.allocate(4).putInt(bytes.length).array());
+            digest.update(bytes);
+        }
+        return Base64.getEncoder().encodeToString(digest.digest());
+    }
+}
@@ -0,0 +1,94 @@
+package com.winthier.manual;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import org.json.simple.JSONValue;
+
+/**
+ * A serialized page with placeholder slots. The page is cut at the
+ * slots once, and filling it in only escapes the values and joins
+ * them with the static JSON around them.
+ */
+final class PageTemplate {
+    // The escaped form of ManualCompiler.SLOT in serialized JSON
+    private static final String MARKER = "\\u0000";
+    // Static JSON and placeholder keys, alternating
+    private final String[] parts;
+
+    private PageTemplate(final String[] parts) {
+        this.parts = parts;
+    }
+
+    /**
+     * Cut a serialized page at its slots.
+     * @return the template, or null if the page has no slots
+     */
+    static PageTemplate parse(String page) {
+        int index = indexOfMarker(page, 0);
+        if (index < 0) return null;
+        List<String> parts = new ArrayList<>();
+        int from = 0;
+        while (index >= 0) {
+            int end = indexOfMarker(page, index + MARKER.length());
+            if (end < 0) break;
+            parts.add(page.substring(from, index));
+            parts.add(page.substring(index + MARKER.length(), end));
+            from = end + MARKER.length();
+            index = indexOfMarker(page, from);
+        }
+        if (parts.isEmpty()) return null;
+        parts.add(page.substring(from));
+        return new PageTemplate(parts.toArray(new String[0]));
+    }
+
+    /**
+     * Find the next marker which is not escaped itself, as it is
+     * when the text of a book contains a marker.
+     * @return the index of the marker, or -1
+     */
+    static int indexOfMarker(String page, int from) {
+        int index = page.indexOf(MARKER, from);
+        while (index >= 0) {
+            int backslashes = 0;
+            for (int i = index - 1; i >= 0 && page.charAt(i) == '\\'; i -= 1) backslashes += 1;
+            if (backslashes % 2 == 0) return index;
+            index = page.indexOf(MARKER, index + 1);
+        }
+        return -1;
+    }
+
+    /**
+     * Find the pages of an item tag which have slots.
+     * @return page index to template, empty if there are none
+     */
+    static Map<Integer, PageTemplate> parsePages(Map<String, Object> itemTag) {
+        Object pages = itemTag.get("pages");
+        if (!(pages instanceof List)) return Collections.emptyMap();
+        Map<Integer, PageTemplate> result = null;
+        List<?> list = (List<?>)pages;
+        for (int i = 0; i < list.size(); i += 1) {
+            PageTemplate template = parse(list.get(i).toString());
+            if (template == null) continue;
+            if (result == null) result = new HashMap<>();
+            result.put(i, template);
+        }
+        return result != null ? Collections.unmodifiableMap(result) : Collections.<Integer, PageTemplate>emptyMap();
+    }
+
+    String fill(Function<String, String> values) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < parts.length; i += 1) {
+            if (i % 2 == 0) {
+                sb.append(parts[i]);
+            } else {
+                String value = values.apply(parts[i]);
+                if (value != null) sb.append(JSONValue.escape(value));
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,125 @@
+package com.winthier.manual;
+
+import com.winthier.custom.CustomPlugin;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import org.bukkit.Chunk;
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.BlockState;
+import org.bukkit.block.Container;
+import org.bukkit.command.CommandSender;
+import org.bukkit.entity.Player;
+import org.bukkit.inventory.Inventory;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.scheduler.BukkitRunnable;
+
+/**
+ * Replace outdated manual items in the inventories and ender chests
+ * of online players and, optionally, in containers of loaded
+ * chunks. Manuals of players are also switched to the variant for
+ * their locale. Runs every tick until done, but stops for the tick once
+ * its time budget is used up, so a big server is covered over many
+ * ticks instead of in one lag spike.
+ */
+final class RefreshJob extends BukkitRunnable {
+    private static final long PROGRESS_INTERVAL = 5000000000L;
+    private final ManualPlugin plugin;
+    private final ManualItem manualItem;
+    private final CommandSender sender; // null for the console log
+    private final long budgetNanos;
+    private final Deque<Player> players = new ArrayDeque<>();
+    private final Deque<Chunk> chunks = new ArrayDeque<>();
+    private final int totalPlayers;
+    private final int totalChunks;
+    private final long start = System.nanoTime();
+    private long lastProgress = start;
+    private int ticks = 0;
+    private int inventories = 0;
+    private int updated = 0;
+    private boolean done = false;
+
+    RefreshJob(ManualPlugin plugin, ManualItem manualItem, CommandSender sender, long budgetNanos, boolean containers) {
+        this.plugin = plugin;
+        this.manualItem = manualItem;
+        this.sender = sender;
+        this.budgetNanos = budgetNanos;
+        players.addAll(plugin.getServer().getOnlinePlayers());
+        if (containers) {
+            for (World world: plugin.getServer().getWorlds()) {
+                chunks.addAll(Arrays.asList(world.getLoadedChunks()));
+            }
+        }
+        totalPlayers = players.size();
+        totalChunks = chunks.size();
+    }
+
+    void start() {
+        if (sender != null) {
+            sender.sendMessage("Refreshing manual items: " + totalPlayers + " players, " + totalChunks + " chunks.");
+        }
+        runTaskTimer(plugin, 1L, 1L);
+    }
+
+    boolean isDone() {
+        return done;
+    }
+
+    @Override
+    public void run() {
+        ticks += 1;
+        long now = System.nanoTime();
+        long deadline = now + budgetNanos;
+        do {
+            if (!players.isEmpty()) {
+                Player player = players.removeFirst();
+                if (!player.isOnline()) continue;
+                scan(player.getInventory(), player);
+                scan(player.getEnderChest(), player);
+            } else if (!chunks.isEmpty()) {
+                Chunk chunk = chunks.removeFirst();
+                if (!chunk.isLoaded()) continue;
+                for (BlockState state: chunk.getTileEntities()) {
+                    if (state instanceof Container) scan(((Container)state).getInventory(), null);
+                }
+            } else {
+                finish();
+                return;
+            }
+            now = System.nanoTime();
+        } while (now < deadline);
+        if (sender != null && now - lastProgress >= PROGRESS_INTERVAL) {
+            lastProgress = now;
+            sender.sendMessage("Manual refresh: " + (totalPlayers - players.size()) + "/" + totalPlayers + " players, "
+                               + (totalChunks - chunks.size()) + "/" + totalChunks + " chunks, "
+                               + updated + " items updated.");
+        }
+    }
+
+    private void scan(Inventory inventory, Player owner) {
+        inventories += 1;
+        for (int i = 0; i < inventory.getSize(); i += 1) {
+            ItemStack item = inventory.getItem(i);
+            if (item == null || item.getType() != Material.WRITTEN_BOOK) continue;
+            if (!ManualItem.CUSTOM_ID.equals(CustomPlugin.getInstance().getItemManager().getCustomId(item))) continue;
+            ItemStack newItem = manualItem.refreshItem(item, owner);
+            if (newItem == null) continue;
+            inventory.setItem(i, newItem);
+            updated += 1;
+        }
+    }
+
+    private void finish() {
+        cancel();
+        done = true;
+        long ms = (System.nanoTime() - start) / 1000000L;
+        String msg = "Manual refresh done: " + inventories + " inventories in " + ticks + " ticks ("
+            + ms + "ms), " + updated + " items updated.";
+        if (sender != null) {
+            sender.sendMessage(msg);
+        } else if (updated > 0) {
+            plugin.getLogger().info(msg);
+        }
+    }
+}
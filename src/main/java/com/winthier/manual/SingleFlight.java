@@ -0,0 +1,84 @@
+package com.winthier.manual;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Loads in progress by key, so that concurrent requests for the same
+ * key share one load. The first request starts the load, and the
+ * key is free again once the load is completed with complete(). Safe
+ * to use from any thread.
+ */
+final class SingleFlight<K, V> {
+    private final Map<K, CompletableFuture<V>> pending = new ConcurrentHashMap<>();
+
+    /**
+     * Join the load of a key, or start it with the starter if there
+     * is none. The starter gets the future to complete and is called
+     * at most once per load.
+     */
+    CompletableFuture<V> load(K key, Consumer<CompletableFuture<V>> starter) {
+        CompletableFuture<V> future = pending.get(key);
+        if (future != null) return future;
+        CompletableFuture<V> result = new CompletableFuture<>();
+        future = pending.putIfAbsent(key, result);
+        if (future != null) return future;
+        starter.accept(result);
+        return result;
+    }
+
+    /**
+     * Start a new load even if one is in progress. Later requests
+     * join the new one.
+     */
+    CompletableFuture<V> reload(K key, Consumer<CompletableFuture<V>> starter) {
+        CompletableFuture<V> result = new CompletableFuture<>();
+        pending.put(key, result);
+        starter.accept(result);
+        return result;
+    }
+
+    /**
+     * Register a load which the caller starts itself, unless one is
+     * in progress.
+     * @return true if the future was registered
+     */
+    boolean begin(K key, CompletableFuture<V> future) {
+        return pending.putIfAbsent(key, future) == null;
+    }
+
+    boolean isPending(K key) {
+        return pending.containsKey(key);
+    }
+
+    /**
+     * Get the load in progress for a key.
+     * @return the future, or null if there is none
+     */
+    CompletableFuture<V> get(K key) {
+        return pending.get(key);
+    }
+
+    /**
+     * Tell if a load is still the one in progress for its key, and
+     * not replaced by reload() or already completed.
+     */
+    boolean isCurrent(K key, CompletableFuture<V> future) {
+        return pending.get(key) == future;
+    }
+
+    /**
+     * Free the key, unless a newer load took it, and complete the
+     * future.
+     */
+    void complete(K key, CompletableFuture<V> future, V value) {
+        pending.remove(key, future);
+        future.complete(value);
+    }
+
+    void clear() {
+        pending.clear();
+    }
+}
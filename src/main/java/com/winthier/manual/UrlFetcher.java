@@ -0,0 +1,218 @@
+package com.winthier.manual;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import lombok.RequiredArgsConstructor;
+import org.json.simple.JSONValue;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+/**
+ * Download manuals with timeouts and a size limit. Responses are
+ * kept in a cache folder and revalidated with a conditional GET
+ * (ETag and Last-Modified). All methods block and must not be
+ * called from the main thread.
+ *
+ * The read timeout applies to each read, so a server sending a
+ * trickle of bytes could keep a download going for a long time.
+ * The total timeout ends it; it is checked between reads and so may
+ * be exceeded by up to one read timeout.
+ */
+@RequiredArgsConstructor
+final class UrlFetcher {
+    private final File cacheFolder; // null to disable caching
+    private final int connectTimeout;
+    private final int readTimeout;
+    private final long maxBytes;
+    private final long totalTimeout;
+
+    /**
+     * Open the body of the document at the URL. If the server
+     * reports that the cached copy is still current, the cached
+     * copy is returned. Reading beyond the size limit throws an
+     * IOException.
+     */
+    InputStream open(URL url) throws IOException {
+        final long deadline = System.currentTimeMillis() + totalTimeout;
+        File bodyFile = null;
+        File metaFile = null;
+        Map<?, ?> meta = null;
+        if (cacheFolder != null) {
+            String key = hash(url.toString());
+            bodyFile = new File(cacheFolder, key + ".json");
+            metaFile = new File(cacheFolder, key + ".meta");
+            if (bodyFile.isFile()) meta = loadMeta(metaFile);
+        }
+        HttpURLConnection hurlc = (HttpURLConnection)url.openConnection();
+        hurlc.setConnectTimeout(connectTimeout);
+        hurlc.setReadTimeout(readTimeout);
+        hurlc.addRequestProperty("User-Agent", "Mozilla/4.0");
+        if (meta != null) {
+            if (meta.get("ETag") != null) hurlc.addRequestProperty("If-None-Match", meta.get("ETag").toString());
+            if (meta.get("Last-Modified") != null) hurlc.addRequestProperty("If-Modified-Since", meta.get("Last-Modified").toString());
+        }
+        int code = hurlc.getResponseCode();
+        if (System.currentTimeMillis() > deadline) {
+            hurlc.disconnect();
+            throw new IOException("Download took longer than " + totalTimeout + "ms");
+        }
+        if (code == HttpURLConnection.HTTP_NOT_MODIFIED && meta != null) {
+            hurlc.disconnect();
+            return new FileInputStream(bodyFile);
+        }
+        if (code != HttpURLConnection.HTTP_OK) {
+            hurlc.disconnect();
+            throw new IOException("HTTP " + code + " " + hurlc.getResponseMessage());
+        }
+        long length = hurlc.getContentLengthLong();
+        if (length > maxBytes) {
+            hurlc.disconnect();
+            throw new IOException("Document too large: " + length + " bytes");
+        }
+        InputStream in = hurlc.getInputStream();
+        if (bodyFile == null) return new BodyInputStream(in, deadline, null, null);
+        if (hurlc.getHeaderField("ETag") == null && hurlc.getHeaderField("Last-Modified") == null) {
+            // The cached copy can no longer be revalidated.
+            Files.deleteIfExists(metaFile.toPath());
+            Files.deleteIfExists(bodyFile.toPath());
+            return new BodyInputStream(in, deadline, null, null);
+        }
+        cacheFolder.mkdirs();
+        Map<String, Object> newMeta = new LinkedHashMap<>();
+        newMeta.put("URL", url.toString());
+        newMeta.put("ETag", hurlc.getHeaderField("ETag"));
+        newMeta.put("Last-Modified", hurlc.getHeaderField("Last-Modified"));
+        File tmp = File.createTempFile("download", ".tmp", cacheFolder);
+        final File finalBodyFile = bodyFile;
+        final File finalMetaFile = metaFile;
+        return new BodyInputStream(in, deadline, tmp, () -> {
+                // Write the new validators first, but only put them in
+                // place once the body is. A crash in between leaves no
+                // validators, so the next request is unconditional.
+                File metaTmp = File.createTempFile("meta", ".tmp", cacheFolder);
+                try {
+                    Files.write(metaTmp.toPath(), JSONValue.toJSONString(newMeta).getBytes(StandardCharsets.UTF_8));
+                    Files.deleteIfExists(finalMetaFile.toPath());
+                    Files.move(tmp.toPath(), finalBodyFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    Files.move(metaTmp.toPath(), finalMetaFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } finally {
+                    metaTmp.delete();
+                }
+            });
+    }
+
+    private static Map<?, ?> loadMeta(File file) {
+        if (!file.isFile()) return null;
+        try (Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+            return (Map<?, ?>)new JSONParser().parse(reader);
+        } catch (IOException | ParseException | ClassCastException e) {
+            return null;
+        }
+    }
+
+    private static String hash(String str) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            StringBuilder sb = new StringBuilder();
+            for (byte b: digest.digest(str.getBytes(StandardCharsets.UTF_8))) sb.append(String.format("%02x", b));
+            return sb.toString();
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new IllegalStateException(nsae);
+        }
+    }
+
+    interface CacheAction {
+        void run() throws IOException;
+    }
+
+    /**
+     * Enforce the size limit and the total timeout and optionally
+     * copy everything into a temporary file, which is committed to
+     * the cache once the end of the stream has been reached.
+     */
+    private final class BodyInputStream extends FilterInputStream {
+        private final long deadline;
+        private final File tmp;
+        private final OutputStream copy;
+        private final CacheAction commit;
+        private long count = 0;
+        private boolean complete = false;
+
+        BodyInputStream(final InputStream in, final long deadline, final File tmp, final CacheAction commit) throws IOException {
+            super(in);
+            this.deadline = deadline;
+            this.tmp = tmp;
+            this.copy = tmp != null ? new FileOutputStream(tmp) : null;
+            this.commit = commit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            checkDeadline();
+            int b = super.read();
+            if (b < 0) {
+                complete = true;
+            } else {
+                count(1);
+                if (copy != null) copy.write(b);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buf, int off, int len) throws IOException {
+            checkDeadline();
+            int n = super.read(buf, off, len);
+            if (n < 0) {
+                complete = true;
+            } else {
+                count(n);
+                if (copy != null) copy.write(buf, off, n);
+            }
+            return n;
+        }
+
+        private void checkDeadline() throws IOException {
+            if (System.currentTimeMillis() > deadline) {
+                throw new IOException("Download took longer than " + totalTimeout + "ms");
+            }
+        }
+
+        private void count(int n) throws IOException {
+            count += n;
+            if (count > maxBytes) throw new IOException("Document larger than " + maxBytes + " bytes");
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                if (copy != null) {
+                    copy.close();
+                    if (complete) {
+                        commit.run();
+                    } else {
+                        tmp.delete();
+                    }
+                }
+            }
+        }
+    }
+}
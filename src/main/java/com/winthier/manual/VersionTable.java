@@ -0,0 +1,131 @@
+package com.winthier.manual;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+import lombok.RequiredArgsConstructor;
+import org.json.simple.JSONValue;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+/**
+ * Remember the version and content hash of every manual that was
+ * ever loaded, and the epoch of its last change. The epoch is a
+ * counter which goes up with every change of any manual. Manual
+ * items carry the epoch of their own manual as their update version,
+ * so an item stamped with it is known to be up to date, and a
+ * change of one manual leaves the items of all others alone. The
+ * table is saved in the data folder so it survives restarts. Changes
+ * happen on the main thread; stamps may be read from any thread.
+ *
+ * Stamps are Integer.MIN_VALUE + epoch, so they never collide with
+ * the plain manual versions which items used to carry.
+ */
+@RequiredArgsConstructor
+final class VersionTable {
+    private final File file;
+    private final Logger logger;
+    // name -> {version, content hash, epoch of last change}
+    private final Map<String, int[]> entries = new ConcurrentHashMap<>();
+    private volatile int epoch = 0;
+
+    /**
+     * Get the stamp for items of the named manual. A manual which was
+     * never loaded gets the latest epoch, which no later change can
+     * be older than.
+     */
+    int getStamp(String name) {
+        int[] entry = name != null ? entries.get(name) : null;
+        return Integer.MIN_VALUE + (entry != null ? entry[2] : epoch);
+    }
+
+    /**
+     * Check if an item stamp is at least as new as the last change
+     * of the named manual.
+     */
+    boolean isCurrent(String name, int itemStamp) {
+        if (itemStamp >= -1) return false; // Not a stamp
+        int[] entry = entries.get(name);
+        if (entry == null) return false;
+        return itemStamp >= Integer.MIN_VALUE + entry[2];
+    }
+
+    /**
+     * Get the version a freshly compiled manual should have: its own
+     * if that is newer than the recorded one, the recorded one if the
+     * contents did not change, or one more than that if they did, so
+     * that a book edited without raising its Version still updates
+     * its items. Unlike the manuals cache, the table survives
+     * evictions and restarts, so versions never go backwards.
+     */
+    int nextVersion(ManualPlugin.Manual manual) {
+        int[] entry = entries.get(manual.getName());
+        if (entry == null || manual.getVersion() > entry[0]) return manual.getVersion();
+        if (entry[1] == manual.getItemTag().hashCode()) return entry[0];
+        return entry[0] + 1;
+    }
+
+    /**
+     * Record a freshly compiled manual. Give it a new epoch if it
+     * differs from what was recorded before. Call save() afterwards
+     * if this returns true.
+     */
+    boolean update(ManualPlugin.Manual manual) {
+        int hash = manual.getItemTag().hashCode();
+        int[] entry = entries.get(manual.getName());
+        if (entry != null && entry[0] == manual.getVersion() && entry[1] == hash) return false;
+        epoch += 1;
+        entries.put(manual.getName().intern(), new int[] {manual.getVersion(), hash, epoch});
+        return true;
+    }
+
+    void load() {
+        if (!file.isFile()) return;
+        Map<?, ?> map;
+        try (Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+            map = (Map<?, ?>)new JSONParser().parse(reader);
+        } catch (IOException | ParseException | ClassCastException e) {
+            logger.warning("Could not read " + file + ": " + e.getMessage());
+            return;
+        }
+        epoch = ManualCompiler.getInt(map, "Epoch", 0);
+        Object manuals = map.get("Manuals");
+        if (!(manuals instanceof Map)) return;
+        for (Map.Entry<?, ?> it: ((Map<?, ?>)manuals).entrySet()) {
+            if (!(it.getValue() instanceof List)) continue;
+            List<?> list = (List<?>)it.getValue();
+            if (list.size() != 3) continue;
+            int[] entry = new int[3];
+            for (int i = 0; i < 3; i += 1) entry[i] = ((Number)list.get(i)).intValue();
+            entries.put(it.getKey().toString().intern(), entry);
+        }
+    }
+
+    void save() {
+        Map<String, Object> manuals = new HashMap<>();
+        for (Map.Entry<String, int[]> it: entries.entrySet()) {
+            int[] entry = it.getValue();
+            manuals.put(it.getKey(), new ArrayList<>(Arrays.asList(entry[0], entry[1], entry[2])));
+        }
+        Map<String, Object> map = new HashMap<>();
+        map.put("Epoch", epoch);
+        map.put("Manuals", manuals);
+        try {
+            file.getParentFile().mkdirs();
+            Files.write(file.toPath(), JSONValue.toJSONString(map).getBytes(StandardCharsets.UTF_8));
+        } catch (IOException ioe) {
+            logger.warning("Could not write " + file + ": " + ioe.getMessage());
+        }
+    }
+}
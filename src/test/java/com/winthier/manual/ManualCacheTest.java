@@ -0,0 +1,134 @@
+package com.winthier.manual;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Look up manuals from many threads while the cache is reloaded.
+ */
+public final class ManualCacheTest {
+    private static final int READERS = 8;
+    private static final int BOOKS = 20;
+    private static final int RELOADS = 2000;
+
+    private static ManualPlugin.Manual manual(String name, int version) {
+        Map<String, Object> tag = new HashMap<>();
+        tag.put("title", name);
+        tag.put("pages", Collections.singletonList("[\"\",\"Version " + version + "\"]"));
+        return new ManualPlugin.Manual(name, version, tag, null, 1, 1, Collections.<Integer, PageTemplate>emptyMap());
+    }
+
+    /**
+     * Each reload replaces all books with a new version in one
+     * putAll(), so every snapshot holds a single version.
+     */
+    @Test
+    public void readersSeeWholeReloads() throws Exception {
+        final ManualCache cache = new ManualCache(Long.MAX_VALUE, 60000L);
+        final AtomicBoolean done = new AtomicBoolean(false);
+        ExecutorService executor = Executors.newFixedThreadPool(READERS);
+        List<Future<Integer>> readers = new ArrayList<>();
+        for (int i = 0; i < READERS; i += 1) {
+            readers.add(executor.submit(() -> {
+                        int lookups = 0;
+                        while (!done.get()) {
+                            for (int j = 0; j < BOOKS; j += 1) {
+                                String name = "book" + j;
+                                ManualPlugin.Manual manual = cache.get(name);
+                                if (manual != null) assertEquals(name, manual.getName());
+                                cache.getEntry(name);
+                                lookups += 1;
+                            }
+                            int version = -1;
+                            for (ManualPlugin.Manual manual: cache.values()) {
+                                if (version < 0) version = manual.getVersion();
+                                assertEquals("Mixed versions in one snapshot", version, manual.getVersion());
+                            }
+                        }
+                        return lookups;
+                    }));
+        }
+        Random random = new Random(1);
+        for (int version = 1; version <= RELOADS; version += 1) {
+            Map<String, ManualPlugin.Manual> books = new HashMap<>();
+            for (int j = 0; j < BOOKS; j += 1) books.put("book" + j, manual("book" + j, version));
+            cache.putAll(books);
+            if (random.nextInt(4) == 0) cache.remove("book" + random.nextInt(BOOKS));
+            if (random.nextInt(50) == 0) cache.clear();
+        }
+        done.set(true);
+        for (Future<Integer> reader: readers) {
+            // Rethrows assertion failures of the readers
+            assertTrue(reader.get(30, TimeUnit.SECONDS) > 0);
+        }
+        executor.shutdown();
+        assertEquals(BOOKS, cache.size());
+        for (ManualPlugin.Manual manual: cache.values()) assertEquals(RELOADS, manual.getVersion());
+    }
+
+    /**
+     * Eviction under concurrent lookups keeps the weight within the
+     * limit and never drops the manuals of the current reload.
+     */
+    @Test
+    public void evictionKeepsWeightBelowLimit() throws Exception {
+        long limit = ManualCache.weigh(manual("book0", 1)) * 5L;
+        final ManualCache cache = new ManualCache(limit, 60000L);
+        final AtomicBoolean done = new AtomicBoolean(false);
+        ExecutorService executor = Executors.newFixedThreadPool(READERS);
+        List<Future<?>> readers = new ArrayList<>();
+        for (int i = 0; i < READERS; i += 1) {
+            readers.add(executor.submit(() -> {
+                        while (!done.get()) {
+                            for (int j = 0; j < BOOKS; j += 1) cache.get("book" + j);
+                        }
+                    }));
+        }
+        for (int version = 1; version <= RELOADS; version += 1) {
+            String name = "book" + (version % BOOKS);
+            cache.put(name, manual(name, version));
+            assertTrue(cache.getWeight() <= limit);
+            assertEquals(version, cache.get(name).getVersion());
+        }
+        done.set(true);
+        for (Future<?> reader: readers) reader.get(30, TimeUnit.SECONDS);
+        executor.shutdown();
+        assertTrue(cache.getEvictions() > 0);
+        cache.clear();
+        assertNull(cache.get("book0"));
+    }
+
+    @Test
+    public void listenerHearsEvictions() {
+        long limit = ManualCache.weigh(manual("book0", 1)) * 2L;
+        ManualCache cache = new ManualCache(limit, 60000L);
+        List<String> evicted = new ArrayList<>();
+        cache.setEvictionListener(evicted::add);
+        cache.put("book0", manual("book0", 1));
+        cache.put("book1", manual("book1", 1));
+        cache.put("missing", null);
+        assertEquals(Collections.singletonList("book0"), evicted);
+        assertNull(cache.get("book0"));
+        cache.put("book2", manual("book2", 1));
+        assertEquals(Arrays.asList("book0", "book1"), evicted);
+        // Negative entries are evicted without telling.
+        cache.put("book3", manual("book3", 1));
+        assertEquals(Arrays.asList("book0", "book1"), evicted);
+        assertFalse(cache.containsKey("missing"));
+    }
+}
@@ -0,0 +1,36 @@
+package com.winthier.manual;
+
+import java.util.Collections;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Cut serialized pages at their slots.
+ */
+public final class PageTemplateTest {
+    // What the serializer writes for a slot, and for a book whose
+    // text contains a backslash followed by u0000.
+    private static final String SLOT = "\\u0000";
+    private static final String LITERAL = "\\\\u0000";
+
+    @Test
+    public void fillsSlots() {
+        PageTemplate template = PageTemplate.parse("[\"Hello " + SLOT + "player" + SLOT + "!\"]");
+        assertEquals("[\"Hello Alice!\"]", template.fill(key -> key.equals("player") ? "Alice" : null));
+    }
+
+    @Test
+    public void ignoresEscapedMarkers() {
+        assertNull(PageTemplate.parse("[\"Write " + LITERAL + "player" + LITERAL + "\"]"));
+        PageTemplate template = PageTemplate.parse("[\"" + LITERAL + " " + SLOT + "player" + SLOT + "\"]");
+        assertEquals("[\"" + LITERAL + " Alice\"]", template.fill(key -> "Alice"));
+    }
+
+    @Test
+    public void escapesValues() {
+        PageTemplate template = PageTemplate.parse("[\"" + SLOT + "player" + SLOT + "\"]");
+        assertEquals("[\"a\\\"b\"]", template.fill(key -> "a\"b"));
+        assertEquals(Collections.emptyMap(), PageTemplate.parsePages(Collections.<String, Object>singletonMap("pages", Collections.singletonList("[\"" + LITERAL + "\"]"))));
+    }
+}
@@ -0,0 +1,100 @@
+package com.winthier.manual;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The single flight which ManualPlugin.loadManual() uses, keyed by
+ * the base name of the book as it does.
+ */
+public final class SingleFlightTest {
+    private static final int THREADS = 16;
+
+    /**
+     * Request names from many threads at once, all of which miss.
+     * @return the futures in the order of the names
+     */
+    private static List<CompletableFuture<Map<String, Object>>> loadConcurrently(final SingleFlight<String, Map<String, Object>> flight,
+                                                                                  final AtomicInteger compiles,
+                                                                                  final String... names) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Future<CompletableFuture<Map<String, Object>>>> futures = new ArrayList<>();
+        for (int i = 0; i < THREADS * names.length; i += 1) {
+            final String name = names[i % names.length];
+            futures.add(executor.submit(() -> {
+                        start.await();
+                        return flight.load(ManualPlugin.baseName(name), future -> compiles.incrementAndGet());
+                    }));
+        }
+        start.countDown();
+        List<CompletableFuture<Map<String, Object>>> result = new ArrayList<>();
+        for (Future<CompletableFuture<Map<String, Object>>> future: futures) result.add(future.get(10, TimeUnit.SECONDS));
+        executor.shutdown();
+        return result;
+    }
+
+    @Test
+    public void concurrentMissesCompileOnce() throws Exception {
+        SingleFlight<String, Map<String, Object>> flight = new SingleFlight<>();
+        AtomicInteger compiles = new AtomicInteger();
+        List<CompletableFuture<Map<String, Object>>> futures = loadConcurrently(flight, compiles, "rules");
+        assertEquals(1, compiles.get());
+        for (CompletableFuture<Map<String, Object>> future: futures) assertSame(futures.get(0), future);
+    }
+
+    @Test
+    public void volumesOfOneBookCompileOnce() throws Exception {
+        SingleFlight<String, Map<String, Object>> flight = new SingleFlight<>();
+        AtomicInteger compiles = new AtomicInteger();
+        List<CompletableFuture<Map<String, Object>>> futures = loadConcurrently(flight, compiles, "rules", "rules#2", "rules#3");
+        assertEquals(1, compiles.get());
+        for (CompletableFuture<Map<String, Object>> future: futures) assertSame(futures.get(0), future);
+    }
+
+    @Test
+    public void completedLoadFreesKey() {
+        SingleFlight<String, Map<String, Object>> flight = new SingleFlight<>();
+        AtomicInteger compiles = new AtomicInteger();
+        CompletableFuture<Map<String, Object>> first = flight.load("rules", future -> compiles.incrementAndGet());
+        assertTrue(flight.isPending("rules"));
+        flight.complete("rules", first, null);
+        assertTrue(first.isDone());
+        assertFalse(flight.isPending("rules"));
+        CompletableFuture<Map<String, Object>> second = flight.load("rules", future -> compiles.incrementAndGet());
+        assertNotSame(first, second);
+        assertEquals(2, compiles.get());
+    }
+
+    @Test
+    public void reloadReplacesLoad() {
+        SingleFlight<String, Map<String, Object>> flight = new SingleFlight<>();
+        AtomicInteger compiles = new AtomicInteger();
+        CompletableFuture<Map<String, Object>> first = flight.load("rules", future -> compiles.incrementAndGet());
+        CompletableFuture<Map<String, Object>> second = flight.reload("rules", future -> compiles.incrementAndGet());
+        assertEquals(2, compiles.get());
+        assertSame(second, flight.load("rules", future -> compiles.incrementAndGet()));
+        assertFalse(flight.isCurrent("rules", first));
+        assertTrue(flight.isCurrent("rules", second));
+        // The old load finishing must not free the key of the new one.
+        flight.complete("rules", first, null);
+        assertTrue(flight.isPending("rules"));
+        flight.complete("rules", second, null);
+        assertFalse(flight.isPending("rules"));
+        assertFalse(flight.isCurrent("rules", second));
+    }
+}
@@ -0,0 +1,158 @@
+package com.winthier.manual;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Run UrlFetcher against a local HTTP server.
+ */
+public final class UrlFetcherTest {
+    private static final String BODY = "{\"title\":\"Test\",\"pages\":[\"Hello\"]}";
+    private HttpServer server;
+    private File cacheFolder;
+    private final List<Integer> codes = Collections.synchronizedList(new ArrayList<>());
+    private volatile boolean validators = true;
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/book", this::handleBook);
+        server.createContext("/large", this::handleLarge);
+        server.createContext("/slow", this::handleSlow);
+        server.start();
+        cacheFolder = Files.createTempDirectory("urlcache").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+        File[] files = cacheFolder.listFiles();
+        if (files != null) {
+            for (File file: files) file.delete();
+        }
+        cacheFolder.delete();
+    }
+
+    private void handleBook(HttpExchange exchange) throws IOException {
+        if (validators && "\"v1\"".equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+            send(exchange, 304, null);
+            return;
+        }
+        if (validators) exchange.getResponseHeaders().add("ETag", "\"v1\"");
+        send(exchange, 200, BODY.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void handleLarge(HttpExchange exchange) throws IOException {
+        // Chunked, so the size is only known while reading
+        codes.add(200);
+        exchange.sendResponseHeaders(200, 0);
+        try (OutputStream out = exchange.getResponseBody()) {
+            byte[] chunk = new byte[1024];
+            for (int i = 0; i < 64; i += 1) out.write(chunk);
+        }
+    }
+
+    private void handleSlow(HttpExchange exchange) throws IOException {
+        codes.add(200);
+        exchange.sendResponseHeaders(200, 0);
+        try (OutputStream out = exchange.getResponseBody()) {
+            for (int i = 0; i < 100; i += 1) {
+                out.write('x');
+                out.flush();
+                Thread.sleep(100L);
+            }
+        } catch (IOException | InterruptedException e) {
+            // Client gave up
+        }
+    }
+
+    private void send(HttpExchange exchange, int code, byte[] body) throws IOException {
+        codes.add(code);
+        exchange.sendResponseHeaders(code, body == null ? -1 : body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            if (body != null) out.write(body);
+        }
+    }
+
+    private URL url(String path) throws IOException {
+        return new URL("http://127.0.0.1:" + server.getAddress().getPort() + path);
+    }
+
+    private static String readAll(InputStream in) throws IOException {
+        try (InputStream body = in) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            for (int n = body.read(buf); n >= 0; n = body.read(buf)) out.write(buf, 0, n);
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    @Test
+    public void revalidatesCachedCopy() throws IOException {
+        UrlFetcher fetcher = new UrlFetcher(cacheFolder, 5000, 5000, 1024L * 1024L, 10000L);
+        assertEquals(BODY, readAll(fetcher.open(url("/book"))));
+        assertEquals(BODY, readAll(fetcher.open(url("/book"))));
+        assertEquals(2, codes.size());
+        assertEquals(200, (int)codes.get(0));
+        assertEquals(304, (int)codes.get(1));
+    }
+
+    @Test
+    public void dropsCacheWithoutValidators() throws IOException {
+        UrlFetcher fetcher = new UrlFetcher(cacheFolder, 5000, 5000, 1024L * 1024L, 10000L);
+        assertEquals(BODY, readAll(fetcher.open(url("/book"))));
+        assertEquals(2, cacheFolder.list().length);
+        validators = false;
+        assertEquals(BODY, readAll(fetcher.open(url("/book"))));
+        assertEquals(0, cacheFolder.list().length);
+        // The next request is not conditional.
+        validators = true;
+        assertEquals(BODY, readAll(fetcher.open(url("/book"))));
+        assertEquals(Arrays.asList(200, 200, 200), codes);
+    }
+
+    @Test
+    public void enforcesSizeLimit() throws IOException {
+        UrlFetcher fetcher = new UrlFetcher(cacheFolder, 5000, 5000, 16L * 1024L, 10000L);
+        try {
+            readAll(fetcher.open(url("/large")));
+            fail("Size limit not enforced");
+        } catch (IOException ioe) {
+            assertTrue(ioe.getMessage(), ioe.getMessage().contains("larger than"));
+        }
+    }
+
+    @Test
+    public void enforcesTotalTimeout() throws IOException {
+        // Each read gets a byte well within the read timeout.
+        UrlFetcher fetcher = new UrlFetcher(cacheFolder, 5000, 1000, 1024L * 1024L, 500L);
+        long start = System.currentTimeMillis();
+        try {
+            readAll(fetcher.open(url("/slow")));
+            fail("Total timeout not enforced");
+        } catch (IOException ioe) {
+            assertTrue(ioe.getMessage(), ioe.getMessage().contains("longer than"));
+        }
+        long millis = System.currentTimeMillis() - start;
+        assertTrue("Took " + millis + "ms", millis < 2000L);
+    }
+}
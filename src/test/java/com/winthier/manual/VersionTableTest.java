@@ -0,0 +1,85 @@
+package com.winthier.manual;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Versions and stamps recorded in the version table.
+ */
+public final class VersionTableTest {
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = Files.createTempFile("versions", ".json").toFile();
+        file.delete();
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    private VersionTable table() {
+        VersionTable result = new VersionTable(file, Logger.getAnonymousLogger());
+        result.load();
+        return result;
+    }
+
+    private static ManualPlugin.Manual manual(String name, int version, String page) {
+        Map<String, Object> tag = new HashMap<>();
+        tag.put("title", name);
+        tag.put("pages", Collections.singletonList(page));
+        return new ManualPlugin.Manual(name, version, tag, null, 1, 1, Collections.<Integer, PageTemplate>emptyMap());
+    }
+
+    private static void install(VersionTable versions, ManualPlugin.Manual manual) {
+        ManualPlugin.Manual installed = ManualPlugin.withVersion(null, manual, versions.nextVersion(manual));
+        if (versions.update(installed)) versions.save();
+    }
+
+    @Test
+    public void editBumpsVersionAcrossRestarts() {
+        VersionTable versions = table();
+        install(versions, manual("rules", 1, "a"));
+        assertEquals(2, versions.nextVersion(manual("rules", 1, "b")));
+        install(versions, manual("rules", 1, "b"));
+        // After a restart, the same source keeps the bumped version.
+        versions = table();
+        assertEquals(2, versions.nextVersion(manual("rules", 1, "b")));
+        int stamp = versions.getStamp("rules");
+        install(versions, manual("rules", 1, "b"));
+        assertEquals(stamp, versions.getStamp("rules"));
+        // A higher Version in the book wins.
+        assertEquals(5, versions.nextVersion(manual("rules", 5, "b")));
+        assertFalse(versions.update(ManualPlugin.withVersion(null, manual("rules", 1, "b"), 2)));
+    }
+
+    @Test
+    public void stampsArePerManual() {
+        VersionTable versions = table();
+        install(versions, manual("rules", 1, "a"));
+        int rules = versions.getStamp("rules");
+        // Loading another manual, or changing it, leaves the items
+        // of this one alone.
+        install(versions, manual("help", 1, "a"));
+        install(versions, manual("help", 1, "b"));
+        assertEquals(rules, versions.getStamp("rules"));
+        assertTrue(versions.isCurrent("rules", rules));
+        install(versions, manual("rules", 1, "b"));
+        assertFalse(versions.isCurrent("rules", rules));
+        assertTrue(versions.isCurrent("rules", versions.getStamp("rules")));
+        assertFalse(versions.isCurrent("missing", versions.getStamp("missing")));
+    }
+}